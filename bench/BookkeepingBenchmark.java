@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.MinMaxPriorityQueue;
+
+/*
+ * Master bookkeeping cost per operation with many slaves and threads.
+ * "legacy" is the previous MinMaxPriorityQueue code: scan every Server to
+ * find a thread, then remove and re-offer. "index" is ServerLoadIndex.
+ *   start:   place a new thread on a slave
+ *   finish:  remove a random running thread
+ *   migrate: move 8 threads from the most to the least loaded slave
+ * Usage: BookkeepingBenchmark [slaves] [threads] [ops]
+ */
+public class BookkeepingBenchmark {
+  public static void main(String[] args) {
+    int slaves = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    int ops = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+    System.out.println("impl\top\tslaves\tthreads\tns_per_op");
+    for (int pass = 0; pass < 2; pass++) {
+      // First pass warms up the JIT
+      boolean print = pass == 1;
+      runLegacy(slaves, threads, ops, print);
+      runIndex(slaves, threads, ops, print);
+    }
+  }
+
+  private static void runLegacy(int slaves, int threads, int ops, boolean print) {
+    MinMaxPriorityQueue<Server> queue = MinMaxPriorityQueue.<Server>create();
+    for (int i = 0; i < slaves; i++) {
+      queue.offer(new Server("10.0.0." + i, 10000 + i));
+    }
+    int nextTid = 0;
+    ArrayList<Integer> live = new ArrayList<Integer>();
+    for (; nextTid < threads; nextTid++) {
+      legacyAdd(queue, nextTid);
+      live.add(nextTid);
+    }
+    Random random = new Random(1);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ops; i++) {
+      legacyAdd(queue, nextTid);
+      live.add(nextTid++);
+    }
+    report(print, "legacy", "start", slaves, threads, ops, start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < ops; i++) {
+      int tid = live.set(random.nextInt(live.size()), nextTid);
+      legacyRemove(queue, tid);
+      legacyAdd(queue, nextTid++);
+    }
+    report(print, "legacy", "finish+start", slaves, threads, ops, start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < ops; i++) {
+      Server src = queue.peekLast();
+      Server dst = queue.peekFirst();
+      List<Integer> tids = new ArrayList<Integer>(src.getThreadSet()).subList(0, 8);
+      queue.remove(src);
+      queue.remove(dst);
+      src.getThreadSet().removeAll(tids);
+      dst.getThreadSet().addAll(tids);
+      queue.offer(src);
+      queue.offer(dst);
+    }
+    report(print, "legacy", "migrate", slaves, threads, ops, start);
+  }
+
+  private static void legacyAdd(MinMaxPriorityQueue<Server> queue, int tid) {
+    Server server = queue.pollFirst();
+    server.getThreadSet().add(tid);
+    queue.offer(server);
+  }
+
+  private static void legacyRemove(MinMaxPriorityQueue<Server> queue, int tid) {
+    Server target = null;
+    for (Server server : queue) {
+      if (server.getThreadSet().contains(tid)) {
+        target = server;
+        break;
+      }
+    }
+    if (target != null) {
+      queue.remove(target);
+      target.getThreadSet().remove(tid);
+      queue.offer(target);
+    }
+  }
+
+  private static void runIndex(int slaves, int threads, int ops, boolean print) {
+    ServerLoadIndex index = new ServerLoadIndex();
+    for (int i = 0; i < slaves; i++) {
+      index.offer(new Server("10.0.0." + i, 10000 + i));
+    }
+    int nextTid = 0;
+    ArrayList<Integer> live = new ArrayList<Integer>();
+    for (; nextTid < threads; nextTid++) {
+      index.addThread(index.peekFirst(), nextTid);
+      live.add(nextTid);
+    }
+    Random random = new Random(1);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ops; i++) {
+      index.addThread(index.peekFirst(), nextTid);
+      live.add(nextTid++);
+    }
+    report(print, "index", "start", slaves, threads, ops, start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < ops; i++) {
+      int tid = live.set(random.nextInt(live.size()), nextTid);
+      index.removeThread(tid);
+      index.addThread(index.peekFirst(), nextTid++);
+    }
+    report(print, "index", "finish+start", slaves, threads, ops, start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < ops; i++) {
+      Server src = index.peekLast();
+      Server dst = index.peekFirst();
+      List<Integer> tids = new ArrayList<Integer>(src.getThreadSet()).subList(0, 8);
+      index.moveThreads(src, dst, tids);
+    }
+    report(print, "index", "migrate", slaves, threads, ops, start);
+  }
+
+  private static void report(boolean print, String impl, String op, int slaves, int threads, int ops, long start) {
+    if (print) {
+      System.out.println(impl + "\t" + op + "\t" + slaves + "\t" + threads + "\t" + (System.nanoTime() - start) / ops);
+    }
+  }
+}
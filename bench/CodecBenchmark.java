@@ -0,0 +1,86 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.LinkedList;
+
+/*
+ * Compares bytes on the wire and encode/decode time of MessageCodec against
+ * the previous path, which wrote every Message with ObjectOutputStream.
+ * Build the sources under ../src first, then: make codec
+ */
+public class CodecBenchmark {
+  private static final int WARMUP = 20000;
+  private static final int ITERATIONS = 100000;
+
+  public static void main(String[] args) throws Exception {
+    LinkedList<Integer> idList = new LinkedList<Integer>();
+    for (int i = 0; i < 8; i++) {
+      idList.add(i);
+    }
+    byte[] process = MessageCodec.serializeProcess(new TestThread());
+
+    Message[] messages = {
+      new Message(MessageType.MsgProcessFinish, null, (Object)42),
+      new Message(MessageType.MsgResponseSuccess, null, null),
+      new Message(MessageType.MsgNewSlaveRequest, new Server("192.168.1.20", 10421), null),
+      new Message(MessageType.MsgMigrateRequest, new Server("192.168.1.21", 10533), idList),
+      new Message(MessageType.MsgProcessStart, new TestThread(), (Object)7),
+      new Message(MessageType.MsgMigrateChunk, new MigrationChunk(7, 0, true, false, Priority.NORMAL, process,
+          process.length), null),
+    };
+
+    System.out.println("type\tserial_bytes\tcodec_bytes\tserial_ns\tcodec_ns");
+    for (Message msg : messages) {
+      int serialBytes = serialize(msg).length;
+      int codecBytes = MessageCodec.encode(msg).length;
+      int iterations = ITERATIONS;
+      if (msg.getObj() instanceof LinkedList) {
+        iterations = ITERATIONS / 10;
+      }
+      long serialNs = timeSerial(msg, iterations);
+      long codecNs = timeCodec(msg, iterations);
+      System.out.println(msg.getType() + "\t" + serialBytes + "\t" + codecBytes + "\t" + serialNs + "\t" + codecNs);
+    }
+  }
+
+  // Average encode+decode round trip in nanoseconds
+  private static long timeSerial(Message msg, int iterations) throws Exception {
+    for (int i = 0; i < WARMUP; i++) {
+      deserialize(serialize(msg));
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      deserialize(serialize(msg));
+    }
+    return (System.nanoTime() - start) / iterations;
+  }
+
+  private static long timeCodec(Message msg, int iterations) throws Exception {
+    for (int i = 0; i < WARMUP; i++) {
+      byte[] frame = MessageCodec.encode(msg);
+      MessageCodec.decode(frame, 4, frame.length - 4);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      byte[] frame = MessageCodec.encode(msg);
+      MessageCodec.decode(frame, 4, frame.length - 4);
+    }
+    return (System.nanoTime() - start) / iterations;
+  }
+
+  private static byte[] serialize(Message msg) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(msg);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static Message deserialize(byte[] data) throws Exception {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+    Message msg = (Message)in.readObject();
+    in.close();
+    return msg;
+  }
+}
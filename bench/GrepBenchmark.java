@@ -0,0 +1,91 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/*
+ * Grep throughput over a log file, one GrepThread run on the calling thread.
+ *   legacy:  the previous loop, DataInputStream.readLine, a String per
+ *            line and String.contains, without its 5 second sleep
+ *   literal: GrepThread, Boyer-Moore-Horspool over raw bytes
+ *   multi:   GrepThread -m with three literals, Aho-Corasick
+ *   regex:   GrepThread -r, a regex on every decoded line
+ * Every mode prints the same lines, about one in a hundred matches.
+ * Usage: GrepBenchmark [fileMB]
+ */
+public class GrepBenchmark {
+  public static void main(String[] args) throws Exception {
+    long fileMB = args.length > 0 ? Long.parseLong(args[0]) : 256;
+    File input = File.createTempFile("grep", ".log");
+    File output = File.createTempFile("grep", ".out");
+    input.deleteOnExit();
+    output.deleteOnExit();
+    writeLog(input, fileMB * 1024 * 1024);
+
+    System.out.println("mode\tbytes\tmatched_bytes\tseconds\tMB_per_sec");
+    for (int pass = 0; pass < 2; pass++) {
+      // First pass warms up the JIT
+      boolean print = pass == 1;
+      run("legacy", null, input, output, print);
+      run("literal", new String[] {"status=503"}, input, output, print);
+      run("multi", new String[] {"-m", "status=503|status=504|status=599"}, input, output, print);
+      run("regex", new String[] {"-r", "status=50[3]"}, input, output, print);
+    }
+  }
+
+  private static void run(String mode, String[] query, File input, File output, boolean print) throws Exception {
+    output.delete();
+    long start = System.nanoTime();
+    if (query == null) {
+      legacy("status=503", input, output);
+    } else {
+      // Options and query, then input and output
+      String[] ordered = new String[query.length + 2];
+      System.arraycopy(query, 0, ordered, 0, query.length);
+      ordered[query.length] = input.getPath();
+      ordered[query.length + 1] = output.getPath();
+      new GrepThread(ordered).run();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (print) {
+      System.out.println(mode + "\t" + input.length() + "\t" + output.length() + "\t"
+          + String.format("%.2f", seconds) + "\t" + String.format("%.1f", input.length() / seconds / (1024 * 1024)));
+    }
+  }
+
+  // GrepThread.run before the byte matcher, minus the sleep
+  @SuppressWarnings("deprecation")
+  private static void legacy(String query, File input, File output) throws Exception {
+    TransactionalFileInputStream inFile = new TransactionalFileInputStream(input.getPath());
+    TransactionalFileOutputStream outFile = new TransactionalFileOutputStream(output.getPath());
+    PrintStream out = new PrintStream(outFile);
+    DataInputStream in = new DataInputStream(inFile);
+    String line = null;
+    while ((line = in.readLine()) != null) {
+      if (line.contains(query)) {
+        out.println(line);
+      }
+    }
+    out.flush();
+    inFile.close();
+    outFile.close();
+  }
+
+  private static void writeLog(File file, long bytes) throws Exception {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    Random random = new Random(1);
+    long written = 0;
+    long id = 0;
+    while (written < bytes) {
+      int status = random.nextInt(100) == 0 ? 503 : 200;
+      byte[] line = ("2013-09-20 12:00:01 INFO worker-" + random.nextInt(64) + " processed request id=" + id++
+          + " status=" + status + "\n").getBytes("US-ASCII");
+      out.write(line);
+      written += line.length;
+    }
+    out.close();
+  }
+}
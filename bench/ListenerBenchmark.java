@@ -0,0 +1,85 @@
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Burst of MsgProcessFinish from many Slave connections into one
+ * SocketListener, while one connection keeps sending a slow
+ * MsgMigrateRequest. Reports finishes handled per second.
+ * Usage: ListenerBenchmark [slaves] [finishesPerSlave]
+ */
+public class ListenerBenchmark {
+  private static final int PORT = 15719;
+
+  public static void main(String[] args) throws Exception {
+    int slaves = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    final int finishes = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    final ReentrantLock masterLock = new ReentrantLock();
+    final AtomicInteger handled = new AtomicInteger();
+
+    SocketListener listener = new SocketListener(PORT, new MessageHandler() {
+      public void handleMessage(Message msg, SocketListener.Session session) {
+        if (msg.getType() == MessageType.MsgMigrateRequest) {
+          // A Slave busy suspending its threads
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+          }
+        } else {
+          masterLock.lock();
+          try {
+            handled.incrementAndGet();
+          } finally {
+            masterLock.unlock();
+          }
+        }
+        Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+        response.setRequestId(msg.getRequestId());
+        session.reply(response);
+      }
+    });
+    listener.setDaemon(true);
+    listener.start();
+
+    final Connection slow = new Connection("127.0.0.1", PORT);
+    Thread slowSender = new Thread() {
+      public void run() {
+        while (true) {
+          LinkedList<Integer> idList = new LinkedList<Integer>();
+          idList.add(1);
+          slow.request(new Message(MessageType.MsgMigrateRequest, new Server("127.0.0.1", PORT), idList));
+        }
+      }
+    };
+    slowSender.setDaemon(true);
+    slowSender.start();
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(slaves);
+    for (int i = 0; i < slaves; i++) {
+      final Connection connection = new Connection("127.0.0.1", PORT);
+      new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+          }
+          for (int j = 0; j < finishes; j++) {
+            connection.request(new Message(MessageType.MsgProcessFinish, null, (Object)j));
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    double seconds = (System.nanoTime() - begin) / 1e9;
+    System.out.println("slaves\tfinishes\tseconds\tfinishes_per_sec");
+    System.out.println(slaves + "\t" + handled.get() + "\t" + String.format("%.2f", seconds) + "\t"
+        + (long)(handled.get() / seconds));
+    System.exit(0);
+  }
+}
@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Remote reads and makespan of file scans, simulated on Master's
+ * placement and one load balance pass. Every file lies on the local disk
+ * of one random Slave and is grepped in ranges, each range a process.
+ * The ranges are placed as they are submitted, then every thread is
+ * measured at a full core and MigrationPlanner runs once, its moves
+ * picked by ServerLoadIndex.getThreadsToMove.
+ * A range reads LOCAL_RATE from a local disk and REMOTE_RATE otherwise,
+ * a Slave shares its cores between its threads.
+ *   slack 0 ignores locality, as placement did before DataLocality
+ * local_pct is the share of the bytes read locally after the balance
+ * pass, lost the threads it moved off the Slave holding their file.
+ * Usage: LocalityBenchmark [slaves] [files] [rangesPerFile]
+ */
+public class LocalityBenchmark {
+  private static final int CORES = 4;
+  private static final double LOCAL_RATE = 400e6; // Bytes per second of one scan
+  private static final double REMOTE_RATE = 100e6;
+
+  // A grep range, only what placement looks at
+  private static class Scan implements MigratableProcess, FileBackedProcess {
+    private static final long serialVersionUID = 1L;
+    String path;
+    long bytes;
+
+    Scan(String path, long bytes) {
+      this.path = path;
+      this.bytes = bytes;
+    }
+
+    public String[] getInputPaths() {
+      return new String[] { this.path };
+    }
+
+    public long[] getInputSizes() {
+      return new long[] { this.bytes };
+    }
+
+    public void run() {
+    }
+
+    public boolean suspend(long timeoutMillis) {
+      return true;
+    }
+
+    public boolean pause(long timeoutMillis) {
+      return true;
+    }
+
+    public void resume() {
+    }
+  }
+
+  public static void main(String[] args) {
+    int slaves = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int files = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int ranges = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+    System.out.println("slack\tslaves\tprocesses\tlocal_pct\tmoved\tlost\tmax_threads\tmakespan_s");
+    for (double slack : new double[] { 0, 0.25, 0.5, 1.0 }) {
+      run(slack, slaves, files, ranges);
+    }
+  }
+
+  private static void run(double slack, int slaves, int files, int ranges) {
+    Random random = new Random(11);
+    ServerLoadIndex index = new ServerLoadIndex(slack);
+    Server[] servers = new Server[slaves];
+    for (int i = 0; i < slaves; i++) {
+      servers[i] = new Server("10.0.0." + i, 10000 + i);
+      servers[i].setCores(CORES);
+      servers[i].setLocality(Arrays.asList("/data/" + i), new ArrayList<String>());
+      index.offer(servers[i]);
+    }
+
+    // Place every range as it is submitted
+    HashMap<Integer, Scan> scans = new HashMap<Integer, Scan>();
+    int tid = 0;
+    for (int f = 0; f < files; f++) {
+      String path = "/data/" + random.nextInt(slaves) + "/file" + f;
+      long size = (256 + random.nextInt(1792)) * 1024L * 1024L;
+      for (int r = 0; r < ranges; r++) {
+        Scan scan = new Scan(path, size / ranges);
+        DataLocality inputs = DataLocality.of(scan);
+        Server server = index.peekFirst(Priority.NORMAL, inputs);
+        index.addThread(server, tid, Priority.NORMAL, inputs);
+        scans.put(tid++, scan);
+      }
+    }
+
+    // Reports measure every scan at a full core, then one balance pass
+    for (Server server : servers) {
+      for (int id : new ArrayList<Integer>(server.getThreadSet())) {
+        server.setThreadLoad(id, 1.0);
+      }
+      index.update(server);
+    }
+    int moved = 0;
+    int lost = 0;
+    for (MigrationPlanner.Move move : MigrationPlanner.plan(index)) {
+      HashSet<Integer> taken = new HashSet<Integer>();
+      for (Map.Entry<Server, Integer> entry : move.getDstCounts().entrySet()) {
+        List<Integer> tids = index.getThreadsToMove(move.getSrc(), entry.getKey(), entry.getValue(), taken);
+        for (int id : tids) {
+          if (move.getSrc().holds(scans.get(id).path)) {
+            lost++;
+          }
+        }
+        moved += index.moveThreads(move.getSrc(), entry.getKey(), tids).size();
+      }
+    }
+
+    long localBytes = 0;
+    long totalBytes = 0;
+    int maxThreads = 0;
+    double makespan = 0;
+    for (Server server : servers) {
+      double work = 0; // Core seconds
+      double longest = 0;
+      for (int id : server.getThreadSet()) {
+        Scan scan = scans.get(id);
+        boolean local = server.holds(scan.path);
+        double seconds = scan.bytes / (local ? LOCAL_RATE : REMOTE_RATE);
+        work += seconds;
+        longest = Math.max(longest, seconds);
+        totalBytes += scan.bytes;
+        localBytes += local ? scan.bytes : 0;
+      }
+      int threads = server.getThreadSet().size();
+      maxThreads = Math.max(maxThreads, threads);
+      if (threads > 0) {
+        makespan = Math.max(makespan, Math.max(longest, work / Math.min(CORES, threads)));
+      }
+    }
+    System.out.println(slack + "\t" + slaves + "\t" + tid + "\t"
+        + String.format("%.1f", 100.0 * localBytes / totalBytes) + "\t" + moved + "\t" + lost + "\t"
+        + maxThreads + "\t" + String.format("%.1f", makespan));
+  }
+}
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Time to balance a skewed cluster, simulated on Master's bookkeeping.
+ * Slave i starts with threads / (i + 1) threads (Zipf), all of equal load.
+ * "legacy" is the old loadBalance: size/2 rounds per timer tick, each moving
+ * half the thread count difference of the max and min slave, one transfer
+ * after the other. "planner" is MigrationPlanner with one transfer task per
+ * source on pm.balance.threads workers.
+ * A transfer costs two round trips plus a per process suspend/serialize cost,
+ * the network is not involved. Balanced means no single move narrows the gap.
+ * "hot_idle" is the planner on a cluster of 64 core slaves whose most
+ * expensive slave has no threads, only a busy machine: the others must
+ * still be balanced around it. Its spread leaves that slave out.
+ * Usage: MigrationPlannerBenchmark [slaves] [threads] [rttMs] [perProcessMs]
+ */
+public class MigrationPlannerBenchmark {
+  private static final long TICK_MS = 10000; // LoadBalanceTimer period
+  private static final int WORKERS = Integer.getInteger("pm.balance.threads", 16);
+
+  public static void main(String[] args) {
+    int slaves = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    double rtt = args.length > 2 ? Double.parseDouble(args[2]) : 0.5;
+    double perProcess = args.length > 3 ? Double.parseDouble(args[3]) : 0.2;
+
+    System.out.println("impl\tslaves\tthreads\tticks\ttransfers\tmoved\ttransfer_ms\ttime_to_balance_s\tplan_us\tspread");
+    for (int pass = 0; pass < 2; pass++) {
+      // First pass warms up the JIT
+      boolean print = pass == 1;
+      runLegacy(slaves, threads, rtt, perProcess, print);
+      runPlanner("planner", skewed(slaves, threads), null, slaves, threads, rtt, perProcess, print);
+      runHotIdle(slaves, rtt, perProcess, print);
+    }
+  }
+
+  private static void runHotIdle(int slaves, double rtt, double perProcess, boolean print) {
+    ServerLoadIndex index = new ServerLoadIndex();
+    int threads = 0;
+    for (int i = 0; i < slaves; i++) {
+      Server server = new Server("10.0.0." + i, 10000 + i);
+      server.setCores(64);
+      index.offer(server);
+      for (int j = 100 / (i + 1); j > 0; j--) {
+        index.addThread(server, threads++);
+      }
+    }
+    Server hot = new Server("10.0.1.0", 10000);
+    index.offer(hot);
+    hot.setUsage(1.0, 1.0);
+    index.update(hot);
+    runPlanner("hot_idle", index, hot, slaves + 1, threads, rtt, perProcess, print);
+  }
+
+  private static ServerLoadIndex skewed(int slaves, int threads) {
+    ServerLoadIndex index = new ServerLoadIndex();
+    int tid = 0;
+    for (int i = 0; i < slaves; i++) {
+      Server server = new Server("10.0.0." + i, 10000 + i);
+      index.offer(server);
+      int count = threads / (i + 1);
+      for (int j = 0; j < count; j++) {
+        index.addThread(server, tid++);
+      }
+    }
+    return index;
+  }
+
+  private static void runLegacy(int slaves, int threads, double rtt, double perProcess, boolean print) {
+    ServerLoadIndex index = skewed(slaves, threads);
+    int ticks = 0;
+    int transfers = 0;
+    int moved = 0;
+    double lastTickMs = 0;
+    long planNs = 0;
+    while (true) {
+      ticks++;
+      double tickMs = 0;
+      int tickMoved = 0;
+      long start = System.nanoTime();
+      for (int round = index.size() / 2; round > 0; round--) {
+        Server dst = index.peekFirst();
+        Server src = index.peekLast();
+        int diff = (src.getThreadSet().size() - dst.getThreadSet().size()) / 2;
+        if (diff < 1) {
+          break;
+        }
+        List<Integer> tids = new ArrayList<Integer>(src.getThreadSet()).subList(0, diff);
+        index.moveThreads(src, dst, tids);
+        tickMs += 2 * rtt + diff * perProcess;
+        tickMoved += diff;
+        transfers++;
+      }
+      planNs += System.nanoTime() - start;
+      if (tickMoved == 0) {
+        ticks--;
+        break;
+      }
+      moved += tickMoved;
+      lastTickMs = tickMs;
+    }
+    report(print, "legacy", slaves, threads, ticks, transfers, moved, lastTickMs, planNs, index, null);
+  }
+
+  private static void runPlanner(String impl, ServerLoadIndex index, Server skip, int slaves, int threads,
+      double rtt, double perProcess, boolean print) {
+    int ticks = 0;
+    int transfers = 0;
+    int moved = 0;
+    double lastTickMs = 0;
+    long planNs = 0;
+    while (true) {
+      long start = System.nanoTime();
+      List<MigrationPlanner.Move> moves = MigrationPlanner.plan(index);
+      planNs += System.nanoTime() - start;
+      if (moves.isEmpty()) {
+        break;
+      }
+      ticks++;
+      // Sources run in parallel on WORKERS threads, each source's destinations in sequence
+      double[] workers = new double[WORKERS];
+      for (MigrationPlanner.Move move : moves) {
+        Server src = move.getSrc();
+        double taskMs = rtt + move.getCount() * perProcess;
+        List<Integer> tids = new ArrayList<Integer>(src.getThreadSet());
+        int next = 0;
+        for (Map.Entry<Server, Integer> entry : move.getDstCounts().entrySet()) {
+          index.moveThreads(src, entry.getKey(), tids.subList(next, next + entry.getValue()));
+          next += entry.getValue();
+          taskMs += rtt;
+          transfers++;
+        }
+        moved += move.getCount();
+        Arrays.sort(workers);
+        workers[0] += taskMs;
+      }
+      Arrays.sort(workers);
+      lastTickMs = workers[WORKERS - 1];
+    }
+    report(print, impl, slaves, threads, ticks, transfers, moved, lastTickMs, planNs, index, skip);
+  }
+
+  // Balanced at the start of the last tick that moved anything, plus that tick's transfers
+  private static void report(boolean print, String impl, int slaves, int threads, int ticks, int transfers,
+      int moved, double lastTickMs, long planNs, ServerLoadIndex index, Server skip) {
+    if (!print) {
+      return;
+    }
+    double seconds = ticks == 0 ? 0 : ((ticks - 1) * TICK_MS + lastTickMs) / 1000.0;
+    int most = 0;
+    int least = Integer.MAX_VALUE;
+    for (Server server : index) {
+      if (server != skip) {
+        most = Math.max(most, server.getThreadSet().size());
+        least = Math.min(least, server.getThreadSet().size());
+      }
+    }
+    int spread = most - least;
+    System.out.println(impl + "\t" + slaves + "\t" + threads + "\t" + ticks + "\t" + transfers + "\t" + moved
+        + "\t" + String.format("%.1f", lastTickMs) + "\t" + String.format("%.1f", seconds)
+        + "\t" + (planNs / 1000) + "\t" + spread);
+  }
+}
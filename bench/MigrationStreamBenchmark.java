@@ -0,0 +1,135 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Migrates processes carrying large in-memory state over loopback into a
+ * SocketListener that collects them with MigrationInbox.
+ *   batch:  every process serialized into memory first, then sent whole,
+ *           the way one list in a single message used to be
+ *   stream: MigrationOutputStream, chunked while serializing
+ * Reports bytes sent, time until the destination has the first process,
+ * total wall clock per process and the sender's heap growth.
+ * Run with -Dpm.migrate.compress=true to deflate the stream.
+ * Usage: MigrationStreamBenchmark [processes] [stateMB]
+ */
+public class MigrationStreamBenchmark {
+  private static final int PORT = 15721;
+
+  // A process holding a large, half compressible state
+  public static class BigStateProcess implements MigratableProcess {
+    private static final long serialVersionUID = 1L;
+    private byte[] state;
+
+    public BigStateProcess(int bytes, long seed) {
+      this.state = new byte[bytes];
+      Random random = new Random(seed);
+      for (int i = 0; i < bytes; i += 2) {
+        this.state[i] = (byte)random.nextInt();
+      }
+    }
+
+    public void run() {
+    }
+
+    public boolean suspend(long timeoutMillis) {
+      return true;
+    }
+
+    public boolean pause(long timeoutMillis) {
+      return true;
+    }
+
+    public void resume() {
+    }
+  }
+
+  private static final AtomicLong firstArrival = new AtomicLong();
+  private static volatile CountDownLatch arrived;
+
+  public static void main(String[] args) throws Exception {
+    int processes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int stateMB = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+    final MigrationInbox inbox = new MigrationInbox();
+    SocketListener listener = new SocketListener(PORT, new MessageHandler() {
+      public void handleMessage(Message msg, SocketListener.Session session) {
+        Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+        try {
+          if (inbox.add((MigrationChunk)msg.getObj()) != null) {
+            firstArrival.compareAndSet(0, System.nanoTime());
+            arrived.countDown();
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+          response = new Message(MessageType.MsgReponseError, null, null);
+        }
+        response.setRequestId(msg.getRequestId());
+        session.reply(response);
+      }
+    });
+    listener.setDaemon(true);
+    listener.start();
+    Thread.sleep(500);
+    Connection connection = new Connection("127.0.0.1", PORT);
+
+    BigStateProcess[] list = new BigStateProcess[processes];
+    for (int i = 0; i < processes; i++) {
+      list[i] = new BigStateProcess(stateMB * 1024 * 1024, i);
+    }
+
+    System.out.println("mode\tcompress\tprocesses\tstate_mb\tbytes\tfirst_ms\tms_per_process\theap_growth_mb");
+    for (int pass = 0; pass < 2; pass++) {
+      // First pass warms up the JIT
+      boolean print = pass == 1;
+      run("batch", connection, list, stateMB, print);
+      run("stream", connection, list, stateMB, print);
+    }
+    System.exit(0);
+  }
+
+  private static void run(String mode, Connection connection, BigStateProcess[] list, int stateMB, boolean print)
+      throws Exception {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    System.gc();
+    long heapBefore = memory.getHeapMemoryUsage().getUsed();
+    long heapPeak = heapBefore;
+    arrived = new CountDownLatch(list.length);
+    firstArrival.set(0);
+    long bytes = 0;
+
+    long start = System.nanoTime();
+    if (mode.equals("batch")) {
+      byte[][] blobs = new byte[list.length][];
+      for (int i = 0; i < list.length; i++) {
+        blobs[i] = MessageCodec.serializeProcess(list[i]);
+        heapPeak = Math.max(heapPeak, memory.getHeapMemoryUsage().getUsed());
+      }
+      Connection.PendingReply[] replies = new Connection.PendingReply[list.length];
+      for (int i = 0; i < list.length; i++) {
+        MigrationChunk whole = new MigrationChunk(i, 0, true, false, Priority.NORMAL, blobs[i], blobs[i].length);
+        replies[i] = connection.send(new Message(MessageType.MsgMigrateChunk, whole, null));
+        bytes += blobs[i].length;
+      }
+      heapPeak = Math.max(heapPeak, memory.getHeapMemoryUsage().getUsed());
+      for (Connection.PendingReply reply : replies) {
+        reply.await(Connection.REQUEST_TIMEOUT);
+      }
+    } else {
+      for (int i = 0; i < list.length; i++) {
+        bytes += MigrationOutputStream.send(connection, i, Priority.NORMAL, list[i]);
+        heapPeak = Math.max(heapPeak, memory.getHeapMemoryUsage().getUsed());
+      }
+    }
+    arrived.await();
+    long end = System.nanoTime();
+
+    if (print) {
+      System.out.println(mode + "\t" + Boolean.getBoolean("pm.migrate.compress") + "\t" + list.length + "\t"
+          + stateMB + "\t" + bytes + "\t" + (firstArrival.get() - start) / 1000000 + "\t"
+          + (end - start) / 1000000 / list.length + "\t" + (heapPeak - heapBefore) / (1024 * 1024));
+    }
+  }
+}
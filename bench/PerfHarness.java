@@ -0,0 +1,298 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/*
+ * Small stand-in for JMH, which cannot be fetched in the build environment.
+ * Every case runs warmup iterations, then measured iterations of a fixed
+ * length, and reports throughput in ops/s as mean, 99.9% error (normal
+ * approximation), min and max over the measured iterations.
+ * Like JMH, every case runs in a JVM of its own, so the code one case
+ * warmed up does not profile the next, and every result of run() is
+ * compared against a volatile sink, so the JIT cannot drop the work.
+ * Options follow JMH's names:
+ *   -f <n>      JVMs per case, their samples are pooled, default 1, 0 runs in this JVM
+ *   -wi <n>     warmup iterations, default 3
+ *   -i <n>      measured iterations, default 5
+ *   -r <s>      seconds per iteration, default 1
+ *   -rf json|csv|text   result format, default text
+ *   -rff <file> write results there as well as to stdout
+ *   <regex>...  only run cases whose name matches one of them
+ */
+public class PerfHarness {
+  // One benchmark, run() is one operation and returns what it computed
+  public static abstract class Case {
+    private String name;
+
+    public Case(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return this.name;
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    public abstract Object run() throws Exception;
+
+    public void tearDown() throws Exception {
+    }
+  }
+
+  private static class Result {
+    String name;
+    double[] samples;
+    double mean;
+    double error;
+    double min;
+    double max;
+  }
+
+  private Class<?> main; // Started again in every forked JVM
+  private int forks = 1;
+  private int warmups = 3;
+  private int iterations = 5;
+  private double seconds = 1;
+  private String format = "text";
+  private String outFile;
+  private List<String> filters = new ArrayList<String>();
+  private volatile Object sink; // Never equal to a result in practice, but the JIT cannot know
+  private long sinkHits;
+
+  public PerfHarness(Class<?> main, String[] args) {
+    this.main = main;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-f")) {
+        this.forks = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-wi")) {
+        this.warmups = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-i")) {
+        this.iterations = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-r")) {
+        this.seconds = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("-rf")) {
+        this.format = args[++i];
+      } else if (args[i].equals("-rff")) {
+        this.outFile = args[++i];
+      } else {
+        this.filters.add(args[i]);
+      }
+    }
+  }
+
+  public void run(List<Case> cases) throws Exception {
+    List<Result> results = new ArrayList<Result>();
+    for (Case c : cases) {
+      if (!this.selected(c.getName())) {
+        continue;
+      }
+      System.out.println("# " + c.getName());
+      Result result = new Result();
+      result.name = c.getName();
+      result.samples = this.forks > 0 ? this.fork(c) : this.measure(c);
+      summarize(result);
+      results.add(result);
+    }
+
+    String report = this.format(results);
+    System.out.println();
+    System.out.print(report);
+    if (this.outFile != null) {
+      PrintWriter out = new PrintWriter(new FileWriter(this.outFile));
+      try {
+        out.print(report);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  // Samples of c in this JVM
+  private double[] measure(Case c) throws Exception {
+    double[] samples = new double[this.iterations];
+    c.setUp();
+    try {
+      for (int i = 0; i < this.warmups; i++) {
+        System.out.println(String.format(Locale.ROOT, "Warmup %d: %.3f ops/s", i + 1, this.iteration(c)));
+      }
+      for (int i = 0; i < this.iterations; i++) {
+        samples[i] = this.iteration(c);
+        System.out.println(String.format(Locale.ROOT, "Iteration %d: %.3f ops/s", i + 1, samples[i]));
+      }
+    } finally {
+      c.tearDown();
+    }
+    return samples;
+  }
+
+  // Samples of c from forks fresh JVMs with the same options, each running only c
+  private double[] fork(Case c) throws Exception {
+    double[] samples = new double[this.forks * this.iterations];
+    File file = File.createTempFile("perf-fork", ".csv");
+    file.deleteOnExit();
+    for (int f = 0; f < this.forks; f++) {
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(this.main.getName());
+      command.add("-f");
+      command.add("0");
+      command.add("-wi");
+      command.add(String.valueOf(this.warmups));
+      command.add("-i");
+      command.add(String.valueOf(this.iterations));
+      command.add("-r");
+      command.add(String.valueOf(this.seconds));
+      command.add("-rf");
+      command.add("samples");
+      command.add("-rff");
+      command.add(file.getPath());
+      command.add("^" + Pattern.quote(c.getName()) + "$");
+      System.out.println("Fork " + (f + 1) + " of " + this.forks);
+      int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+      if (exit != 0) {
+        throw new Exception("Fork of " + c.getName() + " exited with " + exit);
+      }
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+        for (int i = 0; i < this.iterations; i++) {
+          samples[f * this.iterations + i] = Double.parseDouble(in.readLine());
+        }
+      } finally {
+        in.close();
+      }
+    }
+    file.delete();
+    return samples;
+  }
+
+  private boolean selected(String name) {
+    if (this.filters.isEmpty()) {
+      return true;
+    }
+    for (String filter : this.filters) {
+      if (name.matches(".*" + filter + ".*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Ops per second over one iteration, checking the clock in growing batches
+  private double iteration(Case c) throws Exception {
+    long length = (long)(this.seconds * 1e9);
+    long ops = 0;
+    long batch = 1;
+    long start = System.nanoTime();
+    long elapsed = 0;
+    while (elapsed < length) {
+      for (long i = 0; i < batch; i++) {
+        if (c.run() == this.sink) {
+          this.sinkHits++;
+        }
+      }
+      ops += batch;
+      elapsed = System.nanoTime() - start;
+      if (elapsed < length / 100) {
+        batch *= 2;
+      }
+    }
+    this.sink = new Object[] { this.sinkHits };
+    return ops / (elapsed / 1e9);
+  }
+
+  private static void summarize(Result result) {
+    double sum = 0;
+    result.min = Double.MAX_VALUE;
+    result.max = 0;
+    for (double sample : result.samples) {
+      sum += sample;
+      result.min = Math.min(result.min, sample);
+      result.max = Math.max(result.max, sample);
+    }
+    int n = result.samples.length;
+    result.mean = sum / n;
+    double squares = 0;
+    for (double sample : result.samples) {
+      squares += (sample - result.mean) * (sample - result.mean);
+    }
+    double stddev = n > 1 ? Math.sqrt(squares / (n - 1)) : 0;
+    result.error = n > 1 ? 3.291 * stddev / Math.sqrt(n) : Double.NaN;
+  }
+
+  private String format(List<Result> results) throws IOException {
+    StringBuilder out = new StringBuilder();
+    if (this.format.equals("samples")) {
+      // One sample per line, how a forked JVM hands back its result
+      for (Result result : results) {
+        for (double sample : result.samples) {
+          out.append(sample).append("\n");
+        }
+      }
+    } else if (this.format.equals("json")) {
+      // Same shape as JMH's JSON, so the same tools can read it
+      out.append("[\n");
+      for (int i = 0; i < results.size(); i++) {
+        Result result = results.get(i);
+        out.append("  {\n");
+        out.append("    \"benchmark\" : \"").append(result.name).append("\",\n");
+        out.append("    \"mode\" : \"thrpt\",\n");
+        out.append("    \"threads\" : 1,\n");
+        out.append("    \"forks\" : ").append(this.forks).append(",\n");
+        out.append("    \"warmupIterations\" : ").append(this.warmups).append(",\n");
+        out.append("    \"measurementIterations\" : ").append(this.iterations).append(",\n");
+        out.append("    \"primaryMetric\" : {\n");
+        out.append("      \"score\" : ").append(number(result.mean)).append(",\n");
+        out.append("      \"scoreError\" : ").append(number(result.error)).append(",\n");
+        out.append("      \"scoreConfidence\" : [ ").append(number(result.mean - result.error)).append(", ")
+            .append(number(result.mean + result.error)).append(" ],\n");
+        out.append("      \"scoreUnit\" : \"ops/s\",\n");
+        // One array per fork, as JMH writes it
+        out.append("      \"rawData\" : [ [ ");
+        for (int j = 0; j < result.samples.length; j++) {
+          if (j > 0) {
+            out.append(j % this.iterations == 0 ? " ], [ " : ", ");
+          }
+          out.append(number(result.samples[j]));
+        }
+        out.append(" ] ]\n");
+        out.append("    }\n");
+        out.append(i + 1 < results.size() ? "  },\n" : "  }\n");
+      }
+      out.append("]\n");
+    } else if (this.format.equals("csv")) {
+      out.append("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\"\n");
+      for (Result result : results) {
+        out.append("\"").append(result.name).append("\",\"thrpt\",1,").append(result.samples.length).append(",")
+            .append(number(result.mean)).append(",").append(number(result.error)).append(",\"ops/s\"\n");
+      }
+    } else {
+      out.append(String.format(Locale.ROOT, "%-40s %6s %16s %14s %14s %14s%n", "Benchmark", "Cnt", "Score", "Error",
+          "Min", "Max"));
+      for (Result result : results) {
+        out.append(String.format(Locale.ROOT, "%-40s %6d %16.3f %14.3f %14.3f %14.3f  ops/s%n", result.name,
+            result.samples.length, result.mean, result.error, result.min, result.max));
+      }
+    }
+    return out.toString();
+  }
+
+  private static String number(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return "\"NaN\"";
+    }
+    return String.format(Locale.ROOT, "%.6f", value);
+  }
+}
@@ -0,0 +1,260 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/*
+ * Regression suite for the control plane, migration and transactional I/O,
+ * run with PerfHarness. Every score is operations per second, see each
+ * case for what one operation is.
+ *   codec.*        MessageCodec encode + decode of one Message
+ *   net.roundTrip  Connection.request over loopback to a SocketListener
+ *   bookkeeping.*  ServerLoadIndex as used by addThreadToSlave / removeThreadFromSlave
+ *   suspend.*      suspend at a safe point, serialize, deserialize, start again
+ *   io.*           one pass over a file through the transactional streams
+ * Build the sources under ../src first, then: make perf
+ */
+public class PerfSuite {
+  private static final int PORT = 15723;
+  private static final int IO_FILE_MB = Integer.getInteger("perf.io.fileMB", 32);
+
+  public static void main(String[] args) throws Exception {
+    List<PerfHarness.Case> cases = new ArrayList<PerfHarness.Case>();
+    codec(cases);
+    net(cases);
+    bookkeeping(cases);
+    suspend(cases);
+    io(cases);
+    new PerfHarness(PerfSuite.class, args).run(cases);
+    System.exit(0);
+  }
+
+  private static void codec(List<PerfHarness.Case> cases) throws Exception {
+    LinkedList<Integer> idList = new LinkedList<Integer>();
+    for (int i = 0; i < 8; i++) {
+      idList.add(i);
+    }
+    Message[] messages = {
+      new Message(MessageType.MsgProcessFinish, null, (Object)42),
+      new Message(MessageType.MsgNewSlaveRequest, new Server("192.168.1.20", 10421), null),
+      new Message(MessageType.MsgMigrateRequest, new Server("192.168.1.21", 10533), idList),
+      new Message(MessageType.MsgProcessStart, new TestThread(), (Object)7),
+    };
+    for (final Message msg : messages) {
+      cases.add(new PerfHarness.Case("codec." + msg.getType()) {
+        public Object run() throws Exception {
+          byte[] frame = MessageCodec.encode(msg);
+          // encode() puts the length in front, decode() takes what follows it
+          return MessageCodec.decode(frame, 4, frame.length - 4);
+        }
+      });
+    }
+  }
+
+  private static void net(List<PerfHarness.Case> cases) {
+    cases.add(new PerfHarness.Case("net.roundTrip") {
+      private SocketListener listener;
+      private Connection connection;
+
+      public void setUp() throws Exception {
+        this.listener = new SocketListener(PORT, new MessageHandler() {
+          public void handleMessage(Message msg, SocketListener.Session session) {
+            Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+            response.setRequestId(msg.getRequestId());
+            session.reply(response);
+          }
+        });
+        this.listener.setDaemon(true);
+        this.listener.start();
+        Thread.sleep(200);
+        this.connection = new Connection("127.0.0.1", PORT);
+      }
+
+      public Object run() throws Exception {
+        Message response = this.connection.request(new Message(MessageType.MsgProcessFinish, null, (Object)1));
+        if (response == null) {
+          throw new Exception("No response");
+        }
+        return response;
+      }
+
+      public void tearDown() {
+        this.connection.close();
+      }
+    });
+  }
+
+  private static void bookkeeping(List<PerfHarness.Case> cases) {
+    // One finish and one placement per operation, 500 slaves with 100000 threads
+    cases.add(new PerfHarness.Case("bookkeeping.placeAndFinish") {
+      private ServerLoadIndex index;
+      private ArrayList<Integer> live;
+      private Random random;
+      private int nextTid;
+
+      public void setUp() {
+        this.index = new ServerLoadIndex();
+        for (int i = 0; i < 500; i++) {
+          this.index.offer(new Server("10.0.0." + i, 10000 + i));
+        }
+        this.live = new ArrayList<Integer>();
+        for (; this.nextTid < 100000; this.nextTid++) {
+          this.index.addThread(this.index.peekFirst(), this.nextTid);
+          this.live.add(this.nextTid);
+        }
+        this.random = new Random(1);
+      }
+
+      public Object run() {
+        int tid = this.live.set(this.random.nextInt(this.live.size()), this.nextTid);
+        this.index.removeThread(tid);
+        Server server = this.index.peekFirst();
+        this.index.addThread(server, this.nextTid++);
+        return server;
+      }
+    });
+  }
+
+  private static void suspend(List<PerfHarness.Case> cases) throws Exception {
+    final File input = File.createTempFile("perf-grep", ".in");
+    final File output = File.createTempFile("perf-grep", ".out");
+    input.deleteOnExit();
+    output.deleteOnExit();
+    cases.add(new SuspendCase("suspend.TestThread") {
+      MigratableProcess create() {
+        return new TestThread();
+      }
+    });
+    cases.add(new SuspendCase("suspend.GrepThread") {
+      public void setUp() throws Exception {
+        // Every resume reads one line and sleeps, there are far more lines than operations
+        writeLines(input, 64L * 1024 * 1024);
+        super.setUp();
+      }
+
+      MigratableProcess create() throws Exception {
+        return new GrepThread(new String[] {"abc", input.getPath(), output.getPath()});
+      }
+    });
+  }
+
+  // Migrating a process to the same host: suspend, serialize, deserialize, start again
+  private static abstract class SuspendCase extends PerfHarness.Case {
+    private ExecutorService executor;
+    private ProcessTask task;
+
+    SuspendCase(String name) {
+      super(name);
+    }
+
+    abstract MigratableProcess create() throws Exception;
+
+    public void setUp() throws Exception {
+      this.executor = ProcessExecutors.createPool(4, 256 * 1024);
+      this.task = this.start(this.create());
+    }
+
+    public Object run() throws Exception {
+      if (!this.task.suspend(10000)) {
+        throw new Exception("No safe point reached");
+      }
+      byte[] state = MessageCodec.serializeProcess(this.task.getProcess());
+      this.task = this.start(MessageCodec.deserializeProcess(state));
+      return this.task;
+    }
+
+    public void tearDown() {
+      this.task.suspend(10000);
+      this.executor.shutdown();
+    }
+
+    // Start the process and wait until it runs, so the next suspend meets a running process
+    private ProcessTask start(MigratableProcess process) throws Exception {
+      ProcessTask started = new ProcessTask(0, process);
+      this.executor.execute(started);
+      while (!started.isRunning() && !started.isDone()) {
+        Thread.yield();
+      }
+      return started;
+    }
+  }
+
+  private static void io(List<PerfHarness.Case> cases) throws Exception {
+    final File file = File.createTempFile("perf-io", ".log");
+    file.deleteOnExit();
+    final long size = IO_FILE_MB * 1024L * 1024;
+
+    cases.add(new PerfHarness.Case("io.tfisReadBlock_" + IO_FILE_MB + "MB") {
+      private byte[] buffer = new byte[8192];
+
+      public void setUp() throws Exception {
+        writeLines(file, size);
+      }
+
+      public Object run() throws Exception {
+        TransactionalFileInputStream in = new TransactionalFileInputStream(file.getPath());
+        long read = 0;
+        int n = 0;
+        while ((n = in.read(this.buffer, 0, this.buffer.length)) > 0) {
+          read += n;
+        }
+        in.close();
+        return read;
+      }
+    });
+    cases.add(new PerfHarness.Case("io.tfisReadLine_" + IO_FILE_MB + "MB") {
+      @SuppressWarnings("deprecation")
+      public Object run() throws Exception {
+        TransactionalFileInputStream in = new TransactionalFileInputStream(file.getPath());
+        DataInputStream lines = new DataInputStream(in);
+        long count = 0;
+        while (lines.readLine() != null) {
+          count++;
+        }
+        in.close();
+        return count;
+      }
+    });
+    cases.add(new PerfHarness.Case("io.tfosWriteBlock_" + IO_FILE_MB + "MB") {
+      private File out;
+      private byte[] buffer = new byte[8192];
+
+      public void setUp() throws Exception {
+        this.out = File.createTempFile("perf-io", ".out");
+        this.out.deleteOnExit();
+      }
+
+      public Object run() throws Exception {
+        TransactionalFileOutputStream stream = new TransactionalFileOutputStream(this.out.getPath());
+        long written = 0;
+        for (; written < size; written += this.buffer.length) {
+          stream.write(this.buffer, 0, this.buffer.length);
+        }
+        stream.close();
+        return written;
+      }
+
+      public void tearDown() {
+        this.out.delete();
+      }
+    });
+  }
+
+  private static void writeLines(File file, long bytes) throws Exception {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    long written = 0;
+    long line = 0;
+    while (written < bytes) {
+      byte[] data = ("line " + line++ + " the quick brown fox abc\n").getBytes("US-ASCII");
+      out.write(data);
+      written += data.length;
+    }
+    out.close();
+  }
+}
@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Latency of short HIGH jobs on a Slave busy with BATCH scans, simulated
+ * on PriorityScheduler. The scans never finish within the run, HIGH jobs
+ * with exponential CPU demand arrive at random. Every process that runs
+ * gets an equal share of the cores. A parked scan keeps running until it
+ * reaches its safe point, SUSPEND seconds later.
+ *   shared:  pm.slave.slots=0, every process shares the cores as before
+ *   preempt: one slot per core, a HIGH job parks a scan
+ * batch_core_s is the CPU the scans got, high_*_ms the HIGH job turnaround.
+ * Usage: PriorityBenchmark [cores] [scans] [highJobs] [meanHighMs]
+ */
+public class PriorityBenchmark {
+  private static final double STEP = 0.001; // Simulated seconds per step
+  private static final double SUSPEND = 0.005; // Seconds until a scan reaches its safe point
+  private static final double MEAN_GAP = 1.0; // Seconds between two HIGH arrivals
+
+  public static void main(String[] args) {
+    int cores = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int scans = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int highJobs = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+    double meanHigh = (args.length > 3 ? Double.parseDouble(args[3]) : 200) / 1000;
+
+    System.out.println("policy\tcores\tscans\thigh_jobs\tpreemptions\thigh_mean_ms\thigh_p99_ms\tbatch_core_s\trun_s");
+    run("shared", 0, cores, scans, highJobs, meanHigh);
+    run("preempt", cores, cores, scans, highJobs, meanHigh);
+  }
+
+  private static void run(String policy, int slots, int cores, int scans, int highJobs, double meanHigh) {
+    Random random = new Random(3);
+    PriorityScheduler scheduler = new PriorityScheduler(slots);
+    HashMap<Integer, Double> remaining = new HashMap<Integer, Double>(); // CPU seconds left per thread
+    HashMap<Integer, Double> submitted = new HashMap<Integer, Double>();
+    LinkedHashSet<ProcessTask> runnable = new LinkedHashSet<ProcessTask>();
+    LinkedHashMap<ProcessTask, Double> parking = new LinkedHashMap<ProcessTask, Double>(); // Reaches its safe point at
+    List<Double> turnaround = new ArrayList<Double>();
+    int preemptions = 0;
+    double batchCpu = 0;
+    double time = 0;
+
+    int tid = 0;
+    for (; tid < scans; tid++) {
+      remaining.put(tid, Double.MAX_VALUE);
+      start(scheduler, new ProcessTask(tid, null, Priority.BATCH, null), runnable, parking, time);
+    }
+    double nextArrival = -Math.log(1 - random.nextDouble()) * MEAN_GAP;
+    int arrived = 0;
+
+    while (turnaround.size() < highJobs) {
+      // A HIGH job arrives
+      if (arrived < highJobs && time >= nextArrival) {
+        arrived++;
+        remaining.put(tid, -Math.log(1 - random.nextDouble()) * meanHigh);
+        submitted.put(tid, time);
+        if (start(scheduler, new ProcessTask(tid++, null, Priority.HIGH, null), runnable, parking, time)) {
+          preemptions++;
+        }
+        nextArrival += -Math.log(1 - random.nextDouble()) * MEAN_GAP;
+      }
+
+      // Scans that reached their safe point wait as a new task
+      for (Iterator<Map.Entry<ProcessTask, Double>> it = parking.entrySet().iterator(); it.hasNext();) {
+        Map.Entry<ProcessTask, Double> entry = it.next();
+        if (entry.getValue() <= time) {
+          ProcessTask victim = entry.getKey();
+          it.remove();
+          runnable.remove(victim);
+          ProcessTask next = scheduler.parked(victim, new ProcessTask(victim.getTid(), null, victim.getPriority(),
+              null));
+          if (next != null) {
+            runnable.add(next);
+          }
+        }
+      }
+
+      // Run every runnable process for one step, the cores shared between them
+      double share = Math.min(1.0, (double)cores / Math.max(1, runnable.size())) * STEP;
+      List<ProcessTask> done = new ArrayList<ProcessTask>();
+      for (ProcessTask task : runnable) {
+        double left = remaining.get(task.getTid()) - share;
+        remaining.put(task.getTid(), left);
+        if (task.getPriority() == Priority.BATCH) {
+          batchCpu += share;
+        }
+        if (left <= 0) {
+          done.add(task);
+        }
+      }
+      time += STEP;
+      for (ProcessTask task : done) {
+        runnable.remove(task);
+        parking.remove(task);
+        remaining.remove(task.getTid());
+        turnaround.add(time - submitted.remove(task.getTid()));
+        ProcessTask next = scheduler.leave(task);
+        if (next != null) {
+          runnable.add(next);
+        }
+      }
+    }
+
+    Collections.sort(turnaround);
+    double sum = 0;
+    for (double t : turnaround) {
+      sum += t;
+    }
+    System.out.println(policy + "\t" + cores + "\t" + scans + "\t" + highJobs + "\t" + preemptions + "\t"
+        + String.format("%.1f", sum / turnaround.size() * 1000) + "\t"
+        + String.format("%.1f", turnaround.get((int)(turnaround.size() * 0.99)) * 1000) + "\t"
+        + String.format("%.1f", batchCpu) + "\t" + String.format("%.1f", time));
+  }
+
+  // Admit task, true if it displaced a running scan
+  private static boolean start(PriorityScheduler scheduler, ProcessTask task, LinkedHashSet<ProcessTask> runnable,
+      LinkedHashMap<ProcessTask, Double> parking, double time) {
+    ProcessTask victim = scheduler.admit(task);
+    if (victim == task) {
+      return false;
+    }
+    runnable.add(task);
+    if (victim == null) {
+      return false;
+    }
+    // Keeps its core until the safe point
+    parking.put(victim, time + SUSPEND);
+    return true;
+  }
+}
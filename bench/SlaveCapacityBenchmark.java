@@ -0,0 +1,74 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * How many mostly sleeping processes one Slave JVM can keep running.
+ * "thread" starts one platform Thread per process, as the Slave used to.
+ * "executor" uses ProcessExecutors (-Dpm.slave.executor=virtual|pool).
+ * Stops at the first failure or after max processes.
+ * Usage: SlaveCapacityBenchmark thread|executor [max]
+ */
+public class SlaveCapacityBenchmark {
+  private static final AtomicInteger running = new AtomicInteger();
+  private static volatile boolean stop;
+
+  public static void main(String[] args) throws Exception {
+    String mode = args.length > 0 ? args[0] : "executor";
+    int max = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    ExecutorService executor = null;
+    if (mode.equals("executor")) {
+      executor = ProcessExecutors.create();
+    }
+
+    int started = 0;
+    String failure = "none";
+    long begin = System.nanoTime();
+    try {
+      for (; started < max; started++) {
+        ProcessTask task = new ProcessTask(started, new SleepingProcess());
+        if (executor == null) {
+          new Thread(task).start();
+        } else {
+          executor.execute(task);
+        }
+      }
+    } catch (Throwable e) {
+      failure = e.toString();
+    }
+    // Give queued tasks a chance to reach run()
+    Thread.sleep(3000);
+    double seconds = (System.nanoTime() - begin) / 1e9;
+    Runtime runtime = Runtime.getRuntime();
+    long heapMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+    System.out.println("mode\tsubmitted\trunning\theap_MB\tseconds\tfailure");
+    System.out.println(mode + "\t" + started + "\t" + running.get() + "\t" + heapMB + "\t"
+        + String.format("%.1f", seconds) + "\t" + failure);
+    stop = true;
+    System.exit(0);
+  }
+
+  private static class SleepingProcess implements MigratableProcess {
+    private static final long serialVersionUID = 1L;
+
+    public void run() {
+      running.incrementAndGet();
+      while (!stop) {
+        try {
+          Thread.sleep(2000);
+        } catch (InterruptedException e) {
+        }
+      }
+    }
+
+    public boolean suspend(long timeoutMillis) {
+      return true;
+    }
+
+    public boolean pause(long timeoutMillis) {
+      return true;
+    }
+
+    public void resume() {
+    }
+  }
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Idle cores under a bursty workload, simulated on Master's bookkeeping.
+ * Bursts of CPU bound processes with exponential run times are placed on
+ * the cheapest Slave as they arrive. A Slave shares its cores between its
+ * threads. A transfer takes a round trip plus a per process cost, the
+ * threads keep running on the source until it lands.
+ *   timer: MigrationPlanner every 10 s, the balance timer alone
+ *   steal: the same, and a Slave that drops below one thread per core asks
+ *          for work at once (MigrationPlanner.steal)
+ * idle_core_s counts cores without a thread while another Slave has more
+ * threads than cores. turnaround_s is the mean time from submit to finish.
+ * Usage: StealBenchmark [slaves] [bursts] [burstSize] [meanRunS]
+ */
+public class StealBenchmark {
+  private static final double STEP = 0.05; // Simulated seconds per step
+  private static final double TICK = 10; // LoadBalanceTimer period
+  private static final double BURST_GAP = 30;
+  private static final double RTT = 0.001;
+  private static final double PER_PROCESS = 0.005;
+
+  // Threads on their way from src to dst, applied at time
+  private static class Transfer {
+    double time;
+    Server src;
+    Server dst;
+    List<Integer> tids;
+  }
+
+  public static void main(String[] args) {
+    int slaves = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int bursts = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int burstSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    double meanRun = args.length > 3 ? Double.parseDouble(args[3]) : 8;
+
+    System.out.println("policy\tslaves\tprocesses\tsteals\tmoved\tidle_core_s\tturnaround_s\tmakespan_s");
+    run("timer", false, slaves, bursts, burstSize, meanRun);
+    run("steal", true, slaves, bursts, burstSize, meanRun);
+  }
+
+  private static void run(String policy, boolean steal, int slaves, int bursts, int burstSize, double meanRun) {
+    Random random = new Random(7);
+    ServerLoadIndex index = new ServerLoadIndex();
+    for (int i = 0; i < slaves; i++) {
+      Server server = new Server("10.0.0." + i, 10000 + i);
+      server.setCores(1 + i % 4);
+      index.offer(server);
+    }
+    HashMap<Integer, Double> remaining = new HashMap<Integer, Double>(); // CPU seconds left per thread
+    HashMap<Integer, Double> submitted = new HashMap<Integer, Double>();
+    List<Transfer> transfers = new ArrayList<Transfer>();
+    HashSet<Server> busy = new HashSet<Server>();
+    int nextTid = 0;
+    int steals = 0;
+    int moved = 0;
+    double idle = 0;
+    double turnaround = 0;
+    int finished = 0;
+    double time = 0;
+    double nextTick = TICK;
+
+    while (finished < bursts * burstSize) {
+      // A burst arrives
+      if (nextTid < bursts * burstSize && time >= (nextTid / burstSize) * BURST_GAP) {
+        for (int i = 0; i < burstSize; i++) {
+          int tid = nextTid++;
+          Server server = index.peekFirst();
+          index.addThread(server, tid);
+          server.setThreadLoad(tid, 1.0);
+          index.update(server);
+          remaining.put(tid, -Math.log(1 - random.nextDouble()) * meanRun);
+          submitted.put(tid, time);
+        }
+      }
+
+      // Transfers that land
+      for (Iterator<Transfer> it = transfers.iterator(); it.hasNext();) {
+        Transfer transfer = it.next();
+        if (transfer.time <= time) {
+          List<Integer> still = new ArrayList<Integer>();
+          for (int tid : transfer.tids) {
+            if (remaining.containsKey(tid)) {
+              still.add(tid);
+            }
+          }
+          index.moveThreads(transfer.src, transfer.dst, still);
+          it.remove();
+        }
+      }
+      busy.clear();
+      for (Transfer transfer : transfers) {
+        busy.add(transfer.src);
+      }
+
+      // Run every Slave for one step, cores shared by its threads
+      boolean waiting = false;
+      for (Server server : index) {
+        waiting |= server.getThreadSet().size() > server.getCores();
+      }
+      List<Server> emptied = new ArrayList<Server>();
+      for (Server server : index) {
+        int threads = server.getThreadSet().size();
+        if (waiting && threads < server.getCores()) {
+          idle += (server.getCores() - threads) * STEP;
+        }
+        if (threads == 0) {
+          continue;
+        }
+        double share = Math.min(1.0, (double)server.getCores() / threads) * STEP;
+        List<Integer> done = new ArrayList<Integer>();
+        for (int tid : server.getThreadSet()) {
+          double left = remaining.get(tid) - share;
+          remaining.put(tid, left);
+          if (left <= 0) {
+            done.add(tid);
+          }
+        }
+        for (int tid : done) {
+          remaining.remove(tid);
+          index.removeThread(tid);
+          turnaround += time + STEP - submitted.remove(tid);
+          finished++;
+        }
+        if (!done.isEmpty() && server.getThreadSet().size() < server.getCores()) {
+          emptied.add(server);
+        }
+      }
+      time += STEP;
+
+      if (steal) {
+        for (Server thief : emptied) {
+          MigrationPlanner.Move move = MigrationPlanner.steal(index, thief, busy);
+          if (move != null) {
+            moved += schedule(move, transfers, busy, time);
+            steals++;
+          }
+        }
+      }
+      if (time >= nextTick) {
+        nextTick += TICK;
+        for (MigrationPlanner.Move move : MigrationPlanner.plan(index)) {
+          if (!busy.contains(move.getSrc())) {
+            moved += schedule(move, transfers, busy, time);
+          }
+        }
+      }
+    }
+
+    System.out.println(policy + "\t" + slaves + "\t" + bursts * burstSize + "\t" + steals + "\t" + moved + "\t"
+        + String.format("%.1f", idle) + "\t" + String.format("%.2f", turnaround / finished) + "\t"
+        + String.format("%.1f", time));
+  }
+
+  // Pick the threads of a move now, they land after the transfer time
+  private static int schedule(MigrationPlanner.Move move, List<Transfer> transfers, HashSet<Server> busy,
+      double time) {
+    Iterator<Integer> tids = move.getSrc().getThreadSet().iterator();
+    double landing = time + RTT;
+    int count = 0;
+    for (Map.Entry<Server, Integer> entry : move.getDstCounts().entrySet()) {
+      Transfer transfer = new Transfer();
+      transfer.src = move.getSrc();
+      transfer.dst = entry.getKey();
+      transfer.tids = new ArrayList<Integer>();
+      for (int i = 0; i < entry.getValue() && tids.hasNext(); i++) {
+        transfer.tids.add(tids.next());
+      }
+      landing += RTT + transfer.tids.size() * PER_PROCESS;
+      transfer.time = landing;
+      transfers.add(transfer);
+      count += transfer.tids.size();
+    }
+    busy.add(move.getSrc());
+    return count;
+  }
+}
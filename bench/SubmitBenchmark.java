@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Launching many processes from Master onto Slaves over loopback. The
+ * Slaves are SocketListeners that decode and count the processes, nothing
+ * is run.
+ *   single: one synchronous MsgProcessStart per process, as the REPL does
+ *   batch:  one MsgProcessStartBatch of up to pm.submit.batch processes
+ *           per Slave, all sent before the first answer is awaited
+ * Usage: SubmitBenchmark [processes] [slaves]
+ */
+public class SubmitBenchmark {
+  private static final int PORT = 15725;
+  private static final int BATCH = Integer.getInteger("pm.submit.batch", 1000);
+
+  private static final AtomicInteger started = new AtomicInteger();
+
+  public static void main(String[] args) throws Exception {
+    int processes = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int slaves = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+    List<Connection> connections = new ArrayList<Connection>();
+    for (int i = 0; i < slaves; i++) {
+      SocketListener listener = new SocketListener(PORT + i, new MessageHandler() {
+        public void handleMessage(Message msg, SocketListener.Session session) {
+          if (msg.getType() == MessageType.MsgProcessStartBatch) {
+            started.addAndGet(((LinkedList<?>)msg.getObj()).size());
+          } else {
+            started.incrementAndGet();
+          }
+          Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+          response.setRequestId(msg.getRequestId());
+          session.reply(response);
+        }
+      });
+      listener.setDaemon(true);
+      listener.start();
+    }
+    Thread.sleep(500);
+    for (int i = 0; i < slaves; i++) {
+      connections.add(new Connection("127.0.0.1", PORT + i));
+    }
+
+    System.out.println("mode\tprocesses\tslaves\tmessages\tms\tprocesses_per_sec");
+    for (int pass = 0; pass < 2; pass++) {
+      // First pass warms up the JIT
+      boolean print = pass == 1;
+      run("single", connections, processes, print);
+      run("batch", connections, processes, print);
+    }
+    System.exit(0);
+  }
+
+  private static void run(String mode, List<Connection> connections, int processes, boolean print)
+      throws Exception {
+    started.set(0);
+    int messages = 0;
+    long start = System.nanoTime();
+    if (mode.equals("single")) {
+      for (int tid = 0; tid < processes; tid++) {
+        Connection connection = connections.get(tid % connections.size());
+        if (connection.request(new Message(MessageType.MsgProcessStart, new TestThread(), (Object)tid)) == null) {
+          throw new Exception("No response");
+        }
+        messages++;
+      }
+    } else {
+      // Same spread as the single mode, tid % slaves, grouped per Slave
+      List<Connection.PendingReply> replies = new ArrayList<Connection.PendingReply>();
+      for (int slave = 0; slave < connections.size(); slave++) {
+        LinkedList<Integer> idList = new LinkedList<Integer>();
+        LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+        for (int tid = slave; tid < processes; tid += connections.size()) {
+          idList.add(tid);
+          processList.add(new TestThread());
+          if (idList.size() == BATCH || tid + connections.size() >= processes) {
+            replies.add(connections.get(slave).send(new Message(MessageType.MsgProcessStartBatch,
+                (Object)processList, (Object)idList)));
+            idList = new LinkedList<Integer>();
+            processList = new LinkedList<MigratableProcess>();
+          }
+        }
+      }
+      for (Connection.PendingReply reply : replies) {
+        if (reply.await(Connection.REQUEST_TIMEOUT) == null) {
+          throw new Exception("No response");
+        }
+      }
+      messages = replies.size();
+    }
+    long ms = (System.nanoTime() - start) / 1000000;
+
+    if (print) {
+      System.out.println(mode + "\t" + started.get() + "\t" + connections.size() + "\t" + messages + "\t" + ms
+          + "\t" + (ms == 0 ? 0 : processes * 1000L / ms));
+    }
+  }
+}
@@ -0,0 +1,76 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+
+/*
+ * Time and CPU spent suspending N running processes one after another,
+ * the way MsgMigrateRequest does.
+ * "legacy" is the old protocol: a volatile flag, Thread.sleep(2000) between
+ * checks and a busy spin in suspend(). "safepoint" is TestThread on SafePoint.
+ * Usage: SuspendBenchmark legacy|safepoint [N]
+ */
+public class SuspendBenchmark {
+  public static void main(String[] args) throws Exception {
+    String mode = args.length > 0 ? args[0] : "safepoint";
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    ExecutorService executor = ProcessExecutors.createPool(count, 256 * 1024);
+
+    LinkedList<ProcessTask> tasks = new LinkedList<ProcessTask>();
+    for (int i = 0; i < count; i++) {
+      MigratableProcess process = mode.equals("legacy") ? new LegacyProcess() : new TestThread();
+      ProcessTask task = new ProcessTask(i, process);
+      tasks.add(task);
+      executor.execute(task);
+    }
+    // Let every process reach its sleep
+    Thread.sleep(1000);
+
+    com.sun.management.OperatingSystemMXBean os =
+        (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+    long cpuStart = os.getProcessCpuTime();
+    long start = System.nanoTime();
+    int failed = 0;
+    for (ProcessTask task : tasks) {
+      if (!task.suspend(10000)) {
+        failed++;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    double cpuSeconds = (os.getProcessCpuTime() - cpuStart) / 1e9;
+    System.out.println("mode\tprocesses\tseconds\tcpu_seconds\tfailed");
+    System.out.println(mode + "\t" + count + "\t" + String.format("%.3f", seconds) + "\t"
+        + String.format("%.3f", cpuSeconds) + "\t" + failed);
+    System.exit(0);
+  }
+
+  // TestThread before SafePoint
+  private static class LegacyProcess implements MigratableProcess {
+    private static final long serialVersionUID = 1L;
+    private volatile boolean suspending;
+
+    public void run() {
+      while (!this.suspending) {
+        try {
+          Thread.sleep(2000);
+        } catch (Exception e) {
+        }
+      }
+      this.suspending = false;
+    }
+
+    public boolean suspend(long timeoutMillis) {
+      this.suspending = true;
+      while (this.suspending) {
+        ;
+      }
+      return true;
+    }
+
+    public boolean pause(long timeoutMillis) {
+      return false;
+    }
+
+    public void resume() {
+    }
+  }
+}
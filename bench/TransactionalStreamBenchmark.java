@@ -0,0 +1,145 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/*
+ * Read and write throughput of the transactional streams against the
+ * previous implementation, which reopened the file for every byte.
+ * The previous implementation only handles the first legacyMB of the file.
+ * Run with -Dpm.io.mmap=always|never to compare mapped and channel modes.
+ * Usage: TransactionalStreamBenchmark [fileMB] [legacyMB]
+ */
+public class TransactionalStreamBenchmark {
+  public static void main(String[] args) throws Exception {
+    long fileMB = args.length > 0 ? Long.parseLong(args[0]) : 2048;
+    long legacyMB = args.length > 1 ? Long.parseLong(args[1]) : 1;
+    File file = File.createTempFile("tfis", ".log");
+    file.deleteOnExit();
+    writeLines(file, fileMB * 1024 * 1024);
+
+    System.out.println("mode=" + System.getProperty("pm.io.mmap", "auto"));
+    System.out.println("stream\tbytes\tseconds\tMB_per_sec");
+    report("legacy read()", file.length(), legacyMB * 1024 * 1024, new LegacyInputStream(file.getPath()), false);
+    report("read()", file.length(), file.length(), new TransactionalFileInputStream(file.getPath()), false);
+    report("read(byte[])", file.length(), file.length(), new TransactionalFileInputStream(file.getPath()), true);
+    report("readLine()", file.length(), file.length(), new TransactionalFileInputStream(file.getPath()), false, true);
+    file.delete();
+
+    File out = File.createTempFile("tfos", ".log");
+    out.deleteOnExit();
+    reportWrite("legacy write(int)", legacyMB * 1024 * 1024, new LegacyOutputStream(out.getPath()));
+    reportWrite("write(byte[])", fileMB * 1024 * 1024, new TransactionalFileOutputStream(out.getPath()));
+    out.delete();
+  }
+
+  private static void reportWrite(String name, long size, OutputStream out) throws Exception {
+    byte[] line = "2013-09-20 12:00:01 INFO worker-17 processed request id=123456 status=200\n".getBytes("US-ASCII");
+    long bytes = 0;
+    long start = System.nanoTime();
+    while (bytes < size) {
+      if (out instanceof LegacyOutputStream) {
+        for (byte b : line) {
+          out.write(b);
+        }
+      } else {
+        out.write(line, 0, line.length);
+      }
+      bytes += line.length;
+    }
+    out.close();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(name + "\t" + bytes + "\t" + String.format("%.2f", seconds) + "\t"
+        + String.format("%.1f", bytes / seconds / (1024 * 1024)));
+  }
+
+  private static void report(String name, long fileSize, long limit, InputStream in, boolean bulk) throws Exception {
+    report(name, fileSize, limit, in, bulk, false);
+  }
+
+  @SuppressWarnings("deprecation")
+  private static void report(String name, long fileSize, long limit, InputStream in, boolean bulk, boolean lines)
+      throws Exception {
+    long bytes = 0;
+    long start = System.nanoTime();
+    if (lines) {
+      DataInputStream data = new DataInputStream(in);
+      String line = null;
+      while ((line = data.readLine()) != null) {
+        bytes += line.length() + 1;
+      }
+    } else if (bulk) {
+      byte[] buf = new byte[8192];
+      int count = 0;
+      while (bytes < limit && (count = in.read(buf, 0, buf.length)) > 0) {
+        bytes += count;
+      }
+    } else {
+      while (bytes < limit && in.read() >= 0) {
+        bytes++;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    in.close();
+    System.out.println(name + "\t" + bytes + "\t" + String.format("%.2f", seconds) + "\t"
+        + String.format("%.1f", bytes / seconds / (1024 * 1024)));
+  }
+
+  private static void writeLines(File file, long size) throws Exception {
+    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+    byte[] line = "2013-09-20 12:00:01 INFO worker-17 processed request id=123456 status=200\n".getBytes("US-ASCII");
+    for (long written = 0; written < size; written += line.length) {
+      out.write(line);
+    }
+    out.close();
+  }
+
+  // TransactionalFileOutputStream before buffering
+  private static class LegacyOutputStream extends OutputStream {
+    private String fileName;
+    private long offset;
+
+    public LegacyOutputStream(String fileName) {
+      this.fileName = fileName;
+    }
+
+    public void write(int data) {
+      try {
+        RandomAccessFile file = new RandomAccessFile(this.fileName, "rw");
+        file.seek(this.offset);
+        file.write(data);
+        this.offset++;
+        file.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  // TransactionalFileInputStream before buffering
+  private static class LegacyInputStream extends InputStream {
+    private String fileName;
+    private long offset;
+
+    public LegacyInputStream(String fileName) {
+      this.fileName = fileName;
+    }
+
+    public int read() {
+      try {
+        RandomAccessFile file = new RandomAccessFile(this.fileName, "r");
+        file.seek(this.offset);
+        int data = file.read();
+        this.offset++;
+        file.close();
+        return data;
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.regex.Pattern;
+
+/*
+ * Finds a query in raw bytes, without decoding them. A match never spans
+ * a line, so a hit anywhere in a block of lines points at the line to
+ * print. Literals are matched with Boyer-Moore-Horspool, several literals
+ * at once with an Aho-Corasick automaton. The regex matcher is the only
+ * one that decodes, one line at a time.
+ */
+public abstract class ByteMatcher {
+  public static final char LITERAL = 'l';
+  public static final char MULTI = 'm'; // Literals separated by |
+  public static final char REGEX = 'r';
+
+  // Index of a byte of the first match in data[from, to), -1 if there is none
+  public abstract int find(byte[] data, int from, int to);
+
+  public static ByteMatcher compile(String query, char mode) {
+    if (mode == REGEX) {
+      return new Regex(query);
+    }
+    if (mode == MULTI) {
+      ArrayList<byte[]> patterns = new ArrayList<byte[]>();
+      for (String literal : query.split("\\|")) {
+        patterns.add(literal.getBytes(StandardCharsets.UTF_8));
+      }
+      return patterns.size() == 1 ? new Horspool(patterns.get(0)) : new AhoCorasick(patterns);
+    }
+    return new Horspool(query.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // Boyer-Moore-Horspool, returns the start of the match
+  static class Horspool extends ByteMatcher {
+    private byte[] pattern;
+    private int[] shift = new int[256]; // How far to move on the byte under the pattern's last position
+
+    Horspool(byte[] pattern) {
+      this.pattern = pattern;
+      for (int i = 0; i < 256; i++) {
+        this.shift[i] = pattern.length;
+      }
+      for (int i = 0; i < pattern.length - 1; i++) {
+        this.shift[pattern[i] & 0xff] = pattern.length - 1 - i;
+      }
+    }
+
+    public int find(byte[] data, int from, int to) {
+      int last = this.pattern.length - 1;
+      if (last < 0) {
+        return from < to ? from : -1;
+      }
+      for (int i = from; i + last < to; i += this.shift[data[i + last] & 0xff]) {
+        int j = last;
+        while (data[i + j] == this.pattern[j]) {
+          if (j == 0) {
+            return i;
+          }
+          j--;
+        }
+      }
+      return -1;
+    }
+  }
+
+  // Aho-Corasick as a full transition table, returns the last byte of the match
+  static class AhoCorasick extends ByteMatcher {
+    /*
+     * next[state + byte] is the following state, every state has all 256
+     * transitions. States are numbered by their first slot, state * 256,
+     * and an accepting state, one some pattern ends in, is stored negated.
+     */
+    private int[] next;
+    private boolean empty; // An empty pattern matches every line
+
+    AhoCorasick(ArrayList<byte[]> patterns) {
+      ArrayList<int[]> states = new ArrayList<int[]>();
+      ArrayList<Boolean> ends = new ArrayList<Boolean>();
+      states.add(new int[256]);
+      ends.add(false);
+      for (byte[] pattern : patterns) {
+        int state = 0;
+        for (byte b : pattern) {
+          int child = states.get(state)[b & 0xff];
+          if (child == 0) {
+            child = states.size();
+            states.add(new int[256]);
+            ends.add(false);
+            states.get(state)[b & 0xff] = child;
+          }
+          state = child;
+        }
+        ends.set(state, true);
+        this.empty |= pattern.length == 0;
+      }
+
+      // Breadth first, fill the missing transitions from the failure state
+      int[] fail = new int[states.size()];
+      LinkedList<Integer> queue = new LinkedList<Integer>();
+      for (int b = 0; b < 256; b++) {
+        if (states.get(0)[b] != 0) {
+          queue.add(states.get(0)[b]);
+        }
+      }
+      while (!queue.isEmpty()) {
+        int state = queue.poll();
+        ends.set(state, ends.get(state) || ends.get(fail[state]));
+        for (int b = 0; b < 256; b++) {
+          int child = states.get(state)[b];
+          if (child != 0) {
+            fail[child] = states.get(fail[state])[b];
+            queue.add(child);
+          } else {
+            states.get(state)[b] = states.get(fail[state])[b];
+          }
+        }
+      }
+
+      this.next = new int[states.size() * 256];
+      for (int state = 0; state < states.size(); state++) {
+        for (int b = 0; b < 256; b++) {
+          int target = states.get(state)[b];
+          this.next[state * 256 + b] = ends.get(target) ? -target * 256 : target * 256;
+        }
+      }
+    }
+
+    public int find(byte[] data, int from, int to) {
+      if (this.empty) {
+        return from < to ? from : -1;
+      }
+      int state = 0;
+      for (int i = from; i < to; i++) {
+        state = this.next[state + (data[i] & 0xff)];
+        if (state < 0) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  // java.util.regex on each line, returns the start of the matching line
+  static class Regex extends ByteMatcher {
+    private Pattern pattern;
+
+    Regex(String query) {
+      this.pattern = Pattern.compile(query);
+    }
+
+    public int find(byte[] data, int from, int to) {
+      int start = from;
+      while (start < to) {
+        int end = start;
+        while (end < to && data[end] != '\n') {
+          end++;
+        }
+        if (this.pattern.matcher(new String(data, start, end - start, StandardCharsets.UTF_8)).find()) {
+          return start;
+        }
+        start = end + 1;
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only file of process checkpoints, one per Slave.
+ * Record: int tid | byte kind | int length | long crc | length bytes
+ * A STATE record replaces the previous state of its thread, a TOMBSTONE
+ * (length 0) says the thread finished or left this Slave. A torn record
+ * at the end, from a crash in the middle of a write, is ignored on load,
+ * and so is everything after the first record that is corrupt.
+ * The file is rewritten with only the live records once most of it is garbage.
+ * Master recovers a Slave from the file it finds under its own pm.checkpoint.dir,
+ * so Master and Slaves must point it at one shared directory for recovery to work.
+ *   -Dpm.checkpoint.dir=<dir>   where the files go, default checkpoints/ in the working directory
+ */
+public class CheckpointStore {
+  private static final String DIR = System.getProperty("pm.checkpoint.dir", "checkpoints");
+  private static final byte TOMBSTONE = 0;
+  private static final byte STATE = 1;
+  private static final int RECORD_HEADER = 17;
+  private static final long COMPACT_MIN = 1024 * 1024;
+
+  private File file;
+  private FileOutputStream fileOut;
+  private DataOutputStream out;
+  private HashMap<Integer, Long> lastCrc; // CRC of the state last written per thread ID
+  private HashMap<Integer, Integer> lastSize;
+  private long fileBytes;
+  private long liveBytes;
+
+  // Start an empty store for slave, replacing whatever an earlier run left
+  public CheckpointStore(Server slave) throws IOException {
+    this.file = fileOf(slave.getIP(), slave.getPort());
+    this.file.getParentFile().mkdirs();
+    this.lastCrc = new HashMap<Integer, Long>();
+    this.lastSize = new HashMap<Integer, Integer>();
+    this.open(false);
+  }
+
+  public static File fileOf(String ip, int port) {
+    return new File(DIR, ip + "_" + port + ".ckpt");
+  }
+
+  /*
+   * Append the state of thread tid.
+   * Returns false without writing if it is the same as the last one.
+   */
+  public synchronized boolean write(int tid, byte[] state) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(state);
+    Long last = this.lastCrc.get(tid);
+    if (last != null && last == crc.getValue()) {
+      return false;
+    }
+    this.append(tid, STATE, state, crc.getValue());
+    this.lastCrc.put(tid, crc.getValue());
+    Integer size = this.lastSize.put(tid, state.length);
+    this.liveBytes += state.length + RECORD_HEADER - (size == null ? 0 : size + RECORD_HEADER);
+    return true;
+  }
+
+  // Forget thread tid, it finished or moved to another Slave
+  public synchronized void remove(int tid) throws IOException {
+    if (this.lastCrc.remove(tid) == null) {
+      return;
+    }
+    this.append(tid, TOMBSTONE, new byte[0], 0);
+    this.liveBytes -= this.lastSize.remove(tid) + RECORD_HEADER;
+  }
+
+  // Push the records to disk, compacting first if the file is mostly garbage
+  public synchronized void sync() throws IOException {
+    this.out.flush();
+    if (this.fileBytes > COMPACT_MIN && this.fileBytes > 4 * this.liveBytes) {
+      this.compact();
+    }
+    this.fileOut.getChannel().force(false);
+  }
+
+  /*
+   * Latest state of every live thread in file, by thread ID.
+   * Empty if the file does not exist.
+   */
+  public static LinkedHashMap<Integer, byte[]> load(File file) throws IOException {
+    LinkedHashMap<Integer, byte[]> states = new LinkedHashMap<Integer, byte[]>();
+    if (!file.exists()) {
+      return states;
+    }
+    long left = file.length(); // Bytes not read yet
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        int tid = in.readInt();
+        byte kind = in.readByte();
+        int length = in.readInt();
+        long crc = in.readLong();
+        left -= RECORD_HEADER;
+        // A corrupt header ends the file before its length is trusted with an allocation
+        if ((kind != STATE && kind != TOMBSTONE) || length < 0 || length > MessageCodec.MAX_FRAME_SIZE
+            || length > left || (kind == TOMBSTONE && length != 0)) {
+          break;
+        }
+        byte[] state = new byte[length];
+        in.readFully(state);
+        left -= length;
+        if (kind == TOMBSTONE) {
+          states.remove(tid);
+          continue;
+        }
+        CRC32 check = new CRC32();
+        check.update(state);
+        if (check.getValue() != crc) {
+          break;
+        }
+        states.remove(tid);
+        states.put(tid, state);
+      }
+    } catch (EOFException e) {
+      // Torn or no more records
+    } finally {
+      in.close();
+    }
+    return states;
+  }
+
+  private void append(int tid, byte kind, byte[] state, long crc) throws IOException {
+    this.out.writeInt(tid);
+    this.out.writeByte(kind);
+    this.out.writeInt(state.length);
+    this.out.writeLong(crc);
+    this.out.write(state);
+    this.fileBytes += RECORD_HEADER + state.length;
+  }
+
+  /*
+   * Rewrite the file with the live records only. The current file stays
+   * open until the new one is complete, and is open again afterwards even
+   * if replacing it failed, so a failed compaction never stops checkpointing.
+   */
+  private void compact() throws IOException {
+    this.out.flush();
+    LinkedHashMap<Integer, byte[]> states = load(this.file);
+    File temp = new File(this.file.getPath() + ".tmp");
+    DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    long bytes = 0;
+    boolean written = false;
+    try {
+      for (Map.Entry<Integer, byte[]> entry : states.entrySet()) {
+        CRC32 crc = new CRC32();
+        crc.update(entry.getValue());
+        tempOut.writeInt(entry.getKey());
+        tempOut.writeByte(STATE);
+        tempOut.writeInt(entry.getValue().length);
+        tempOut.writeLong(crc.getValue());
+        tempOut.write(entry.getValue());
+        bytes += RECORD_HEADER + entry.getValue().length;
+      }
+      written = true;
+    } finally {
+      tempOut.close();
+      if (!written) {
+        temp.delete();
+      }
+    }
+    this.out.close();
+    boolean replaced = false;
+    try {
+      replaced = temp.renameTo(this.file);
+    } finally {
+      this.open(true);
+    }
+    if (!replaced) {
+      temp.delete();
+      throw new IOException("Cannot replace " + this.file);
+    }
+    this.fileBytes = bytes;
+  }
+
+  private void open(boolean append) throws IOException {
+    this.fileOut = new FileOutputStream(this.file, append);
+    this.out = new DataOutputStream(new BufferedOutputStream(this.fileOut, 64 * 1024));
+  }
+}
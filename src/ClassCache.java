@@ -0,0 +1,326 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+
+/*
+ * Ships process classes from Master to the Slaves on first use.
+ * Processes are serialized with Output, which annotates every class with
+ * the SHA-1 of its bytecode, empty for JDK classes. Input resolves a class
+ * to the Slave's own copy when that has the same hash. Otherwise the class
+ * comes from a CachedClassLoader for that hash, whose bytes are fetched
+ * from Master once. After that, a start or migration of that class costs
+ * a hash lookup.
+ * A CachedClassLoader defines its own version of the class it is keyed by,
+ * so versions of one class run side by side. Every other class it needs
+ * comes from the Slave's classpath first, then from Master by name, in
+ * Master's current version.
+ * Master hashes a process class when it first loads it, so a class file
+ * recompiled later is not shipped as that version. With a store set, it
+ * also writes every version it hashed there, so threads of an older
+ * version still migrate and recover after Master restarts on a newer one.
+ */
+public class ClassCache {
+  // Where a Slave gets the classes it lacks, Master itself has no source
+  public interface Source {
+    ClassFile fetch(String name, String hash) throws IOException;
+  }
+
+  private static final ClassLoader LOCAL = ClassCache.class.getClassLoader();
+  private static final HashMap<String, String> localHashes = new HashMap<String, String>(); // Class name, "" if not ours
+  private static final HashMap<String, byte[]> classBytes = new HashMap<String, byte[]>(); // Hash to bytecode
+  private static final HashMap<String, CachedClassLoader> loaders = new HashMap<String, CachedClassLoader>();
+  private static volatile Source source;
+  private static volatile File store; // Directory of every version hashed here, named by hash, null if none
+
+  public static void setSource(Source classSource) {
+    source = classSource;
+  }
+
+  public static void setStore(File dir) {
+    dir.mkdirs();
+    store = dir;
+  }
+
+  // Hash c now, while its class file is the one it was loaded from
+  public static void register(Class<?> c) {
+    hashOf(c);
+  }
+
+  // Bytecode of a version this process knows, for MsgClassRequest. An empty hash is the local version of name.
+  public static ClassFile find(String name, String hash) {
+    String local = localHash(name);
+    if (hash.equals("")) {
+      hash = local;
+    }
+    byte[] bytes = null;
+    synchronized (classBytes) {
+      bytes = classBytes.get(hash);
+    }
+    if (bytes == null) {
+      bytes = stored(hash);
+    }
+    return bytes == null ? null : new ClassFile(name, hash, bytes);
+  }
+
+  // Hash annotated for c, empty if it is not one of the classes that can be shipped
+  static String hashOf(Class<?> c) {
+    ClassLoader loader = c.getClassLoader();
+    if (loader instanceof CachedClassLoader) {
+      return ((CachedClassLoader)loader).hashOf(c.getName());
+    }
+    if (loader != LOCAL) {
+      return "";
+    }
+    return localHash(c.getName());
+  }
+
+  // Hash of the class file of name on our classpath, "" if there is none
+  private static String localHash(String name) {
+    synchronized (localHashes) {
+      String hash = localHashes.get(name);
+      if (hash != null) {
+        return hash;
+      }
+    }
+    String hash = "";
+    try {
+      InputStream in = LOCAL.getResourceAsStream(name.replace('.', '/') + ".class");
+      if (in != null) {
+        byte[] bytes = readFully(in);
+        hash = sha1(bytes);
+        synchronized (classBytes) {
+          classBytes.put(hash, bytes);
+        }
+        keep(hash, bytes);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    synchronized (localHashes) {
+      localHashes.put(name, hash);
+    }
+    return hash;
+  }
+
+  // The loader for this version of name, its bytecode is fetched from Master on first use
+  private static CachedClassLoader loaderOf(String name, String hash) throws ClassNotFoundException {
+    synchronized (loaders) {
+      CachedClassLoader loader = loaders.get(hash);
+      if (loader != null) {
+        return loader;
+      }
+    }
+    ClassFile file = fetch(name, hash);
+    CachedClassLoader loader = new CachedClassLoader(name, hash, file.getBytes());
+    synchronized (loaders) {
+      CachedClassLoader known = loaders.get(hash);
+      if (known != null) {
+        return known;
+      }
+      loaders.put(hash, loader);
+    }
+    System.out.println("Cached class " + name + " " + hash);
+    return loader;
+  }
+
+  // From memory or from Master, checked against the hash it was asked for
+  private static ClassFile fetch(String name, String hash) throws ClassNotFoundException {
+    byte[] bytes = null;
+    if (!hash.equals("")) {
+      synchronized (classBytes) {
+        bytes = classBytes.get(hash);
+      }
+      if (bytes == null) {
+        bytes = stored(hash);
+      }
+      if (bytes != null) {
+        return new ClassFile(name, hash, bytes);
+      }
+    }
+    Source current = source;
+    if (current == null) {
+      throw new ClassNotFoundException(name + " " + hash);
+    }
+    ClassFile file = null;
+    try {
+      file = current.fetch(name, hash);
+    } catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+    if (file == null || file.getBytes() == null || !sha1(file.getBytes()).equals(file.getHash())
+        || (!hash.equals("") && !file.getHash().equals(hash))) {
+      throw new ClassNotFoundException(name + " " + hash);
+    }
+    synchronized (classBytes) {
+      classBytes.put(file.getHash(), file.getBytes());
+    }
+    return file;
+  }
+
+  // Write a version to the store once, through a temporary file so a crash leaves no partial one
+  private static void keep(String hash, byte[] bytes) {
+    File dir = store;
+    if (dir == null || hash.equals("")) {
+      return;
+    }
+    File file = new File(dir, hash + ".class");
+    if (file.exists()) {
+      return;
+    }
+    try {
+      File tmp = File.createTempFile(hash, ".tmp", dir);
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(bytes);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // A version from the store, null if it is not there or does not match its hash
+  private static byte[] stored(String hash) {
+    File dir = store;
+    if (dir == null || hash.equals("")) {
+      return null;
+    }
+    File file = new File(dir, hash + ".class");
+    if (!file.isFile()) {
+      return null;
+    }
+    byte[] bytes = null;
+    try {
+      bytes = readFully(new FileInputStream(file));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+    if (!sha1(bytes).equals(hash)) {
+      return null;
+    }
+    synchronized (classBytes) {
+      classBytes.put(hash, bytes);
+    }
+    return bytes;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+      byte[] buffer = new byte[4096];
+      int n = 0;
+      while ((n = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, n);
+      }
+      return bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String sha1(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+      StringBuilder hex = new StringBuilder(2 * digest.length);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // One version of one shipped class, and whatever else it needs that the Slave lacks
+  static class CachedClassLoader extends ClassLoader {
+    private String rootName;
+    private HashMap<String, String> hashes; // Hash of every class defined here
+
+    CachedClassLoader(String rootName, String rootHash, byte[] rootBytes) {
+      super(LOCAL);
+      this.rootName = rootName;
+      this.hashes = new HashMap<String, String>();
+      this.define(new ClassFile(rootName, rootHash, rootBytes));
+    }
+
+    synchronized String hashOf(String name) {
+      String hash = this.hashes.get(name);
+      return hash == null ? "" : hash;
+    }
+
+    // The root class is ours even if the Slave has another version of it
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      synchronized (this) {
+        Class<?> c = this.findLoadedClass(name);
+        if (c == null && !name.equals(this.rootName)) {
+          try {
+            c = this.getParent().loadClass(name);
+          } catch (ClassNotFoundException e) {
+            c = this.define(ClassCache.fetch(name, ""));
+          }
+        }
+        if (c == null) {
+          throw new ClassNotFoundException(name);
+        }
+        if (resolve) {
+          this.resolveClass(c);
+        }
+        return c;
+      }
+    }
+
+    private synchronized Class<?> define(ClassFile file) {
+      this.hashes.put(file.getName(), file.getHash());
+      return this.defineClass(file.getName(), file.getBytes(), 0, file.getBytes().length);
+    }
+  }
+
+  // Writes the hash of every class along with its descriptor
+  public static class Output extends ObjectOutputStream {
+    public Output(OutputStream out) throws IOException {
+      super(out);
+    }
+
+    protected void annotateClass(Class<?> c) throws IOException {
+      this.writeUTF(hashOf(c));
+    }
+  }
+
+  /*
+   * Resolves the classes Output wrote. Once a class had to come from a
+   * CachedClassLoader, the rest of the stream resolves through that loader.
+   */
+  public static class Input extends ObjectInputStream {
+    private CachedClassLoader loader;
+
+    public Input(InputStream in) throws IOException {
+      super(in);
+    }
+
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      String hash = this.readUTF();
+      if (this.loader != null) {
+        return Class.forName(desc.getName(), false, this.loader);
+      }
+      if (hash.equals("") || hash.equals(localHash(desc.getName()))) {
+        return super.resolveClass(desc);
+      }
+      this.loader = loaderOf(desc.getName(), hash);
+      return Class.forName(desc.getName(), false, this.loader);
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Bytecode of one class, carried by MsgClassRequest and MsgClassFile.
+ * hash is the hex SHA-1 of bytes, see ClassCache. A request names the
+ * version it wants by hash, or leaves hash empty for Master's current
+ * version of name, and has no bytes.
+ */
+public class ClassFile {
+  private String name;
+  private String hash;
+  private byte[] bytes;
+
+  public ClassFile(String name, String hash, byte[] bytes) {
+    this.name = name;
+    this.hash = hash;
+    this.bytes = bytes;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public String getHash() {
+    return this.hash;
+  }
+
+  public byte[] getBytes() {
+    return this.bytes;
+  }
+}
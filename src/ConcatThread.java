@@ -0,0 +1,98 @@
+import java.io.File;
+
+/*
+ * Appends part files to an output file in order, then deletes them.
+ * Copies a block between safe points, so it migrates mid-file: the
+ * streams carry the part being read and the output offset.
+ * A part that does not exist is taken as empty.
+ */
+public class ConcatThread implements MigratableProcess, FileBackedProcess, SafePointProcess {
+  private static final long serialVersionUID = 1L;
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private TransactionalFileOutputStream outFile;
+  private String[] partFiles;
+  private int part = 0; // Index of the part being copied
+  private TransactionalFileInputStream inFile; // Reads partFiles[part], null before it is opened
+
+  private SafePoint safePoint = new SafePoint();
+
+  public ConcatThread(String args[]) throws Exception {
+    if (args.length < 2) {
+      System.out.println("usage: ConcatThread <outputFile> <partFile>...");
+      throw new Exception("Invalid Arguments");
+    }
+    this.outFile = new TransactionalFileOutputStream(args[0]);
+    this.partFiles = new String[args.length - 1];
+    System.arraycopy(args, 1, this.partFiles, 0, this.partFiles.length);
+  }
+
+  public void run() {
+    System.out.println("ConcatThread started running!");
+    this.safePoint.started();
+    byte[] block = new byte[BLOCK_SIZE];
+    boolean finished = false;
+    while (!this.safePoint.shouldStop()) {
+      if (this.part == this.partFiles.length) {
+        finished = true;
+        break;
+      }
+      if (this.inFile == null) {
+        if (!new File(this.partFiles[this.part]).exists()) {
+          this.part++;
+          continue;
+        }
+        this.inFile = new TransactionalFileInputStream(this.partFiles[this.part]);
+      }
+      int count = this.inFile.read(block, 0, block.length);
+      if (count < 0) {
+        this.inFile.close();
+        this.inFile = null;
+        this.part++;
+        continue;
+      }
+      this.outFile.write(block, 0, count);
+    }
+    this.outFile.flush();
+    if (finished) {
+      this.outFile.close();
+      for (String partFile : this.partFiles) {
+        new File(partFile).delete();
+      }
+    }
+    this.safePoint.stopped();
+  }
+
+  // The parts not copied yet
+  public String[] getInputPaths() {
+    String[] paths = new String[this.partFiles.length - this.part];
+    System.arraycopy(this.partFiles, this.part, paths, 0, paths.length);
+    return paths;
+  }
+
+  public long[] getInputSizes() {
+    long[] sizes = new long[this.partFiles.length - this.part];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = new File(this.partFiles[this.part + i]).length();
+    }
+    if (this.inFile != null && sizes.length > 0) {
+      sizes[0] = this.inFile.getRemaining();
+    }
+    return sizes;
+  }
+
+  public boolean suspend(long timeoutMillis) {
+    return this.safePoint.suspend(timeoutMillis);
+  }
+
+  public boolean pause(long timeoutMillis) {
+    return this.safePoint.pause(timeoutMillis);
+  }
+
+  public void resume() {
+    this.safePoint.resume();
+  }
+
+  public boolean isStopped() {
+    return this.safePoint.isStopped();
+  }
+}
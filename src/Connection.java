@@ -0,0 +1,232 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Long-lived connection to one peer, shared by every request sent to it.
+ * Each request gets an ID, the reader thread matches responses back to the
+ * waiting caller, so several requests can be in flight at the same time.
+ * A broken socket is replaced on the next request. A request that fails
+ * to write is sent once more on a fresh socket, and an idempotent one also
+ * when the socket breaks while it waits for the response.
+ *   -Dpm.net.connectTimeout=<ms>   give up connecting after this, default 3000
+ *   -Dpm.net.requestTimeout=<ms>   default wait for a response, default 30000
+ */
+public class Connection {
+  public static final long REQUEST_TIMEOUT = Long.getLong("pm.net.requestTimeout", 30000);
+  private static final int CONNECT_TIMEOUT = Integer.getInteger("pm.net.connectTimeout", 3000);
+
+  private String ip;
+  private int port;
+  private AtomicInteger nextRequestId = new AtomicInteger(0);
+  private Object writeLock = new Object();
+  private Link link; // Current socket, null until first use or after a failure
+
+  public Connection(String ip, int port) {
+    this.ip = ip;
+    this.port = port;
+  }
+
+  /*
+   * Send msg and wait for the response with the same request ID.
+   * Returns null if the peer could not be reached, the connection broke
+   * before the response arrived, or no response came within REQUEST_TIMEOUT.
+   */
+  public Message request(Message msg) {
+    return this.send(msg).await(REQUEST_TIMEOUT);
+  }
+
+  // Same as request(msg), waiting at most timeoutMillis for the response
+  public Message request(Message msg, long timeoutMillis) {
+    return this.send(msg).await(timeoutMillis);
+  }
+
+  /*
+   * Send msg without waiting, the response is picked up from the returned
+   * PendingReply. Lets a caller keep several requests in flight.
+   */
+  public PendingReply send(Message msg) {
+    int id = this.nextRequestId.incrementAndGet();
+    msg.setRequestId(id);
+    PendingReply reply = new PendingReply();
+    reply.type = msg.getType();
+    reply.start = System.nanoTime();
+    byte[] frame = null;
+    try {
+      frame = MessageCodec.encode(msg);
+    } catch (IOException e) {
+      e.printStackTrace();
+      reply.complete(null);
+      return reply;
+    }
+    if (msg.getType().isIdempotent()) {
+      reply.connection = this;
+      reply.frame = frame;
+    }
+    this.write(reply, id, frame);
+    return reply;
+  }
+
+  // Send frame on behalf of reply, completes reply with null if it cannot be written
+  private void write(PendingReply reply, int id, byte[] frame) {
+    synchronized (this.writeLock) {
+      // Retry once on a fresh socket, the cached one may have been closed by the peer
+      boolean written = false;
+      for (int attempt = 0; attempt < 2 && !written; attempt++) {
+        Link current = null;
+        try {
+          current = this.openLink();
+          reply.pending = current.pending;
+          reply.id = id;
+          current.pending.put(id, reply);
+          current.out.write(frame);
+          current.out.flush();
+          written = true;
+        } catch (Exception e) {
+          if (current != null) {
+            current.pending.remove(id);
+            this.closeLink(current);
+          }
+        }
+      }
+      if (!written) {
+        // Already had its second try
+        reply.connection = null;
+        reply.complete(null);
+      }
+    }
+  }
+
+  // The socket broke before the response to an idempotent request came, send it again with the same ID
+  private PendingReply resend(PendingReply failed) {
+    PendingReply reply = new PendingReply();
+    reply.type = failed.type;
+    reply.start = failed.start;
+    this.write(reply, failed.id, failed.frame);
+    return reply;
+  }
+
+  public void close() {
+    synchronized (this.writeLock) {
+      if (this.link != null) {
+        this.closeLink(this.link);
+      }
+    }
+  }
+
+  // Called with writeLock held
+  private Link openLink() throws IOException {
+    if (this.link == null) {
+      Socket socket = new Socket();
+      socket.connect(new InetSocketAddress(this.ip, this.port), CONNECT_TIMEOUT);
+      Link newLink = new Link(socket);
+      newLink.start();
+      this.link = newLink;
+    }
+    return this.link;
+  }
+
+  private void closeLink(Link target) {
+    synchronized (this.writeLock) {
+      if (this.link == target) {
+        this.link = null;
+      }
+    }
+    target.shutdown();
+  }
+
+  // One socket and the requests waiting for a response on it
+  private class Link extends Thread {
+    private Socket socket;
+    private DataOutputStream out;
+    private ConcurrentHashMap<Integer, PendingReply> pending;
+    private volatile boolean closed;
+
+    public Link(Socket socket) throws IOException {
+      this.socket = socket;
+      this.socket.setTcpNoDelay(true);
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      this.pending = new ConcurrentHashMap<Integer, PendingReply>();
+      this.setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        while (!this.closed) {
+          Message response = MessageCodec.read(in);
+          PendingReply reply = this.pending.remove(response.getRequestId());
+          if (reply != null) {
+            reply.complete(response);
+          }
+        }
+      } catch (Exception e) {
+        // Peer closed the connection, fall through and fail waiting requests
+      }
+      Connection.this.closeLink(this);
+    }
+
+    public void shutdown() {
+      this.closed = true;
+      try {
+        this.socket.close();
+      } catch (IOException e) {
+        // Ignore it
+      }
+      for (PendingReply reply : this.pending.values()) {
+        reply.complete(null);
+      }
+      this.pending.clear();
+    }
+  }
+
+  public static class PendingReply {
+    private CountDownLatch done = new CountDownLatch(1);
+    private volatile Message response;
+    private ConcurrentHashMap<Integer, PendingReply> pending; // Where it waits for its response
+    private int id;
+    private Connection connection; // Set for an idempotent request until it was retried
+    private byte[] frame;
+    private MessageType type;
+    private long start; // nanoTime the request was sent
+
+    void complete(Message response) {
+      if (response != null) {
+        Metrics.requestDone(this.type, this.start);
+      }
+      this.response = response;
+      this.done.countDown();
+    }
+
+    // The response, null if the request failed or timeoutMillis passed first
+    public Message await(long timeoutMillis) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      try {
+        if (this.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+          if (this.response == null && this.connection != null) {
+            // The socket broke, possibly after a write that went through to a half closed peer
+            PendingReply again = this.connection.resend(this);
+            this.connection = null;
+            return again.await(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+          }
+          return this.response;
+        }
+      } catch (InterruptedException e) {
+        // Treat it as a timeout
+      }
+      // A response arriving later is dropped
+      if (this.pending != null) {
+        this.pending.remove(this.id, this);
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Where the input of one FileBackedProcess lives, for Master's placement.
+ * A Slave holds a file when it lies under one of the directories the
+ * Slave reports as local (pm.locality.paths) or is among the files its
+ * processes read lately. localShare() is the part of the input bytes a
+ * Slave holds, by file count when Master cannot see the sizes.
+ * ServerLoadIndex places a process on the Slave with the lowest
+ * cost - slack * localShare, so a Slave holding all of the input wins
+ * until it costs slack more than the least loaded one, and only moves a
+ * thread off the Slave holding its input when the cost gap is larger than
+ * the locality lost times slack.
+ */
+public class DataLocality {
+  // Cost a Slave holding all of the input may have above the cheapest one
+  public static final double SLACK = Double.parseDouble(System.getProperty("pm.locality.slack", "0.25"));
+
+  private String[] paths;
+  private long[] sizes;
+  private long total;
+
+  private DataLocality(String[] paths, long[] sizes) {
+    this.paths = paths;
+    this.sizes = sizes;
+    for (long size : sizes) {
+      this.total += size;
+    }
+  }
+
+  // Input of process, null if it reads no files
+  public static DataLocality of(MigratableProcess process) {
+    if (!(process instanceof FileBackedProcess)) {
+      return null;
+    }
+    FileBackedProcess files = (FileBackedProcess)process;
+    String[] paths = files.getInputPaths();
+    long[] sizes = files.getInputSizes();
+    if (paths == null || sizes == null || paths.length == 0 || paths.length != sizes.length) {
+      return null;
+    }
+    return new DataLocality(paths, sizes);
+  }
+
+  // Share of the input server holds, 0 to 1
+  public double localShare(Server server) {
+    if (!server.hasLocality()) {
+      return 0;
+    }
+    long localBytes = 0;
+    int localFiles = 0;
+    for (int i = 0; i < this.paths.length; i++) {
+      if (server.holds(this.paths[i])) {
+        localBytes += this.sizes[i];
+        localFiles++;
+      }
+    }
+    if (this.total > 0) {
+      return (double)localBytes / this.total;
+    }
+    return (double)localFiles / this.paths.length;
+  }
+}
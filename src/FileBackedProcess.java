@@ -0,0 +1,15 @@
+/*
+ * Optional beside MigratableProcess, for processes that mostly read files.
+ * Master places such a process on a Slave that has its input on a local
+ * disk or recently read it, and keeps it there unless the load gap is
+ * worth the remote reads, see DataLocality.
+ * Called on Master before the process starts and is shipped, so the
+ * sizes are what Master sees of the files.
+ */
+public interface FileBackedProcess {
+  // Paths of the files the process still reads, as the Slaves see them
+  String[] getInputPaths();
+
+  // Bytes left to read from each of getInputPaths(), in the same order
+  long[] getInputSizes();
+}
@@ -0,0 +1,57 @@
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ * Master's bookkeeping of one parallel grep: the range threads still
+ * running and the part files they write, which a ConcatThread merges into
+ * the output file in range order once every range thread succeeded.
+ */
+public class GrepJob {
+  private String output;
+  private String[] partFiles;
+  private HashSet<Integer> running;
+  private int concatId; // Thread ID reserved for the merge
+  private Priority priority; // Class of every thread of the job
+  private boolean failed = false;
+
+  public GrepJob(String output, String[] partFiles, List<Integer> idList, int concatId, Priority priority) {
+    this.output = output;
+    this.partFiles = partFiles;
+    this.running = new HashSet<Integer>(idList);
+    this.concatId = concatId;
+    this.priority = priority;
+  }
+
+  public String getOutput() {
+    return this.output;
+  }
+
+  public int getConcatId() {
+    return this.concatId;
+  }
+
+  public Priority getPriority() {
+    return this.priority;
+  }
+
+  // Arguments of the ConcatThread that merges the parts
+  public String[] getConcatArgs() {
+    String[] args = new String[this.partFiles.length + 1];
+    args[0] = this.output;
+    System.arraycopy(this.partFiles, 0, args, 1, this.partFiles.length);
+    return args;
+  }
+
+  public synchronized void fail() {
+    this.failed = true;
+  }
+
+  // True when tid was the last range thread and all of them succeeded
+  public synchronized boolean rangeFinished(int tid, boolean success) {
+    this.running.remove(tid);
+    if (!success) {
+      this.failed = true;
+    }
+    return this.running.isEmpty() && !this.failed;
+  }
+}
@@ -1,61 +1,179 @@
-import java.io.DataInputStream;
-import java.io.EOFException;
-import java.io.IOException;
-import java.io.PrintStream;
+import java.io.File;
 
-public class GrepThread implements MigratableProcess {
+/*
+ * Prints the lines of the input that match the query.
+ * usage: GrepThread [-m | -r] [-t <ms>] <queryString> <inputFile> <outputFile> [<start> <end>]
+ *   -m      the query is several literals separated by |
+ *   -r      the query is a regular expression
+ *   -t ms   sleep that long after every line, to watch a slow grep migrate
+ * The input is scanned in blocks of whole lines as raw bytes, only matched
+ * lines are copied out. Between blocks the input offset is at the start of
+ * a line, so that is where a migrated GrepThread resumes.
+ * A missing or unreadable input makes run() throw, so the range fails.
+ */
+public class GrepThread implements MigratableProcess, FileBackedProcess, SafePointProcess {
   private static final long serialVersionUID = 1L;
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int THROTTLED_BLOCK_SIZE = 4096; // Enough for a line, a throttled grep only takes one
   private TransactionalFileInputStream inFile;
   private TransactionalFileOutputStream outFile;
   private String query;
+  private char mode = ByteMatcher.LITERAL;
+  private long throttle = 0; // ms to sleep after every line, 0 scans whole blocks
+
+  private transient ByteMatcher matcher; // Compiled again after migration
+  private SafePoint safePoint = new SafePoint();
   
-  private volatile boolean suspending;
-  
+  // With a start and an end offset it only greps the lines starting in [start, end)
   public GrepThread(String args[]) throws Exception {
-    if (args.length != 3) {
-      System.out.println("usage: GrepProcess <queryString> <inputFile> <outputFile>");
+    int first = 0;
+    while (first < args.length) {
+      if (args[first].equals("-m")) {
+        this.mode = ByteMatcher.MULTI;
+      } else if (args[first].equals("-r")) {
+        this.mode = ByteMatcher.REGEX;
+      } else if (args[first].equals("-t") && first + 1 < args.length) {
+        this.throttle = Long.parseLong(args[++first]);
+      } else {
+        break;
+      }
+      first++;
+    }
+    int count = args.length - first;
+    if (count != 3 && count != 5) {
+      System.out.println("usage: GrepProcess [-m | -r] [-t <ms>] <queryString> <inputFile> <outputFile> "
+          + "[<start> <end>]");
       throw new Exception("Invalid Arguments");
     }
-    this.query = args[0];
-    this.inFile = new TransactionalFileInputStream(args[1]);
-    this.outFile = new TransactionalFileOutputStream(args[2]);
+    this.query = args[first];
+    this.matcher = ByteMatcher.compile(this.query, this.mode);
+    if (count == 5) {
+      this.inFile = new TransactionalFileInputStream(args[first + 1], Long.parseLong(args[first + 3]),
+          Long.parseLong(args[first + 4]));
+    } else {
+      this.inFile = new TransactionalFileInputStream(args[first + 1]);
+    }
+    this.outFile = new TransactionalFileOutputStream(args[first + 2]);
   }
   
   public void run()
   {
     System.out.println("GrepThread started running!");
-    PrintStream out = new PrintStream(outFile);
-    DataInputStream in = new DataInputStream(inFile);
+    this.safePoint.started();
+    // A missing input reads as empty, finish with EXIT_FAILURE instead of an empty result
+    File input = new File(this.inFile.getFileName());
+    if (!input.isFile() || !input.canRead()) {
+      this.safePoint.stopped();
+      throw new RuntimeException("Cannot read input " + input.getPath());
+    }
+    if (this.matcher == null) {
+      this.matcher = ByteMatcher.compile(this.query, this.mode);
+    }
+    byte[] block = new byte[this.throttle > 0 ? THROTTLED_BLOCK_SIZE : BLOCK_SIZE];
     
-    try {
-      while (!this.suspending) {
-        String line = in.readLine();
-        if (line == null) {
-          break;
-        }
-        if (line.contains(query)) {
-          out.println(line);
-        }
-        
-        // Make grep take longer so that we don't require extremely large files for interesting results
-        try {
-          Thread.sleep(5000);
-        } catch (InterruptedException e) {
-          // Ignore it
+    boolean finished = false;
+    while (!this.safePoint.shouldStop()) {
+      long start = this.inFile.getOffset();
+      int length = 0;
+      int count = 0;
+      while (length < block.length && (count = this.inFile.read(block, length, block.length - length)) > 0) {
+        length += count;
+      }
+      if (length == 0) {
+        finished = true;
+        break;
+      }
+      boolean end = length < block.length;
+      // One line at a time when throttled, otherwise every whole line in the block
+      int lines = this.throttle > 0 ? nextNewline(block, 0, length) + 1 : lastNewline(block, length) + 1;
+      if (lines == 0) {
+        if (end) {
+          // Last line, without a newline
+          lines = length;
+        } else {
+          // Line longer than the block, read it again into a larger one
+          this.inFile.seek(start);
+          block = new byte[block.length * 2];
+          continue;
         }
       }
-    } catch (EOFException e) {
-      //End of File
-    } catch (IOException e) {
-      System.out.println ("GrepProcess: Error: " + e);
+      this.printMatches(block, lines);
+      this.inFile.seek(start + lines);
+      
+      if (this.throttle > 0) {
+        this.safePoint.sleep(this.throttle);
+      }
+    }
+    // Push buffered output to the file before anyone serializes this process
+    this.outFile.flush();
+    if (finished) {
+      this.inFile.close();
+      this.outFile.close();
     }
-    this.suspending = false;
+    this.safePoint.stopped();
   }
-  
-  public void suspend() {
-    this.suspending = true;
-    while (suspending) {
-      ;
+
+  // Copy out every line of block[0, length) with a match, each ending in a newline
+  private void printMatches(byte[] block, int length) {
+    int pos = 0;
+    while (pos < length) {
+      int hit = this.matcher.find(block, pos, length);
+      if (hit < 0) {
+        return;
+      }
+      int lineStart = hit;
+      while (lineStart > pos && block[lineStart - 1] != '\n') {
+        lineStart--;
+      }
+      int lineEnd = nextNewline(block, hit, length);
+      if (lineEnd < 0) {
+        lineEnd = length;
+      }
+      this.outFile.write(block, lineStart, lineEnd - lineStart);
+      this.outFile.write('\n');
+      pos = lineEnd + 1;
+    }
+  }
+
+  private static int nextNewline(byte[] block, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (block[i] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int lastNewline(byte[] block, int length) {
+    for (int i = length - 1; i >= 0; i--) {
+      if (block[i] == '\n') {
+        return i;
+      }
     }
+    return -1;
+  }
+  
+  public String[] getInputPaths() {
+    return new String[] { this.inFile.getFileName() };
+  }
+
+  public long[] getInputSizes() {
+    return new long[] { this.inFile.getRemaining() };
+  }
+
+  public boolean suspend(long timeoutMillis) {
+    return this.safePoint.suspend(timeoutMillis);
+  }
+
+  public boolean pause(long timeoutMillis) {
+    return this.safePoint.pause(timeoutMillis);
+  }
+
+  public void resume() {
+    this.safePoint.resume();
+  }
+
+  public boolean isStopped() {
+    return this.safePoint.isStopped();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock free, allocation free histogram of durations in nanoseconds.
+ * Buckets are powers of two of nanoseconds, so a percentile is exact to within
+ * a factor of two, plenty to spot a regression. Safe to record from any
+ * thread at any rate.
+ */
+public class Histogram {
+  private static final int BUCKETS = 64; // Bucket 0 holds 0, bucket i values from 2^(i-1) to 2^i
+
+  private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private AtomicLong count = new AtomicLong();
+  private AtomicLong sum = new AtomicLong();
+  private AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    this.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+    this.count.incrementAndGet();
+    this.sum.addAndGet(nanos);
+    long current = this.max.get();
+    while (nanos > current && !this.max.compareAndSet(current, nanos)) {
+      current = this.max.get();
+    }
+  }
+
+  // Record the time since startNanos, a System.nanoTime() value
+  public void since(long startNanos) {
+    this.record(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return this.count.get();
+  }
+
+  public long getMax() {
+    return this.max.get();
+  }
+
+  public long getMean() {
+    long n = this.count.get();
+    return n == 0 ? 0 : this.sum.get() / n;
+  }
+
+  // Upper bound of the bucket holding the p-th percentile, p from 0 to 100
+  public long getPercentile(double p) {
+    long n = this.count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long)Math.ceil(n * p / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.buckets.get(i);
+      if (seen >= rank) {
+        return i >= 63 ? this.max.get() : Math.min(1L << i, this.max.get());
+      }
+    }
+    return this.max.get();
+  }
+
+  // count p50 p99 max, in microseconds
+  public String toString() {
+    return this.getCount() + "\t" + this.getPercentile(50) / 1000 + "\t" + this.getPercentile(99) / 1000 + "\t"
+        + this.getMax() / 1000;
+  }
+}
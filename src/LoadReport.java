@@ -0,0 +1,80 @@
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Resource usage a Slave sends to Master in MsgLoadReport.
+ * threadLoads holds the share of one core each thread used since the
+ * previous report, -1 when it could not be measured.
+ * localPaths and warmPaths are only sent when they changed since the last
+ * report Master took, null otherwise, see DataLocality.
+ */
+public class LoadReport {
+  private Server slave;
+  private double cpuLoad;
+  private long heapUsed;
+  private long heapMax;
+  private LinkedList<Integer> idList;
+  private LinkedList<Double> threadLoads;
+  private long[] counters = new long[0]; // Named by Metrics.SLAVE_COUNTERS
+  private List<String> localPaths;
+  private List<String> warmPaths;
+
+  public LoadReport(Server slave, double cpuLoad, long heapUsed, long heapMax) {
+    this.slave = slave;
+    this.cpuLoad = cpuLoad;
+    this.heapUsed = heapUsed;
+    this.heapMax = heapMax;
+    this.idList = new LinkedList<Integer>();
+    this.threadLoads = new LinkedList<Double>();
+  }
+
+  public void addThread(int tid, double load) {
+    this.idList.add(tid);
+    this.threadLoads.add(load);
+  }
+
+  public Server getSlave() {
+    return this.slave;
+  }
+
+  public double getCpuLoad() {
+    return this.cpuLoad;
+  }
+
+  public long getHeapUsed() {
+    return this.heapUsed;
+  }
+
+  public long getHeapMax() {
+    return this.heapMax;
+  }
+
+  public LinkedList<Integer> getIdList() {
+    return this.idList;
+  }
+
+  public LinkedList<Double> getThreadLoads() {
+    return this.threadLoads;
+  }
+
+  public long[] getCounters() {
+    return this.counters;
+  }
+
+  public void setCounters(long[] counters) {
+    this.counters = counters;
+  }
+
+  public List<String> getLocalPaths() {
+    return this.localPaths;
+  }
+
+  public List<String> getWarmPaths() {
+    return this.warmPaths;
+  }
+
+  public void setLocality(List<String> localPaths, List<String> warmPaths) {
+    this.localPaths = localPaths;
+    this.warmPaths = warmPaths;
+  }
+}
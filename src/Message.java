@@ -1,26 +1,53 @@
-import java.io.Serializable;
-
-public class Message implements Serializable {
-  private static final long serialVersionUID = 1L;
-  private MessageType type;
-  private Object serializedObj;
-  private Object arg;
-
-  public Message(MessageType type, Object obj, Object arg) {
-    this.type = type;
-    this.serializedObj = obj;
-    this.arg = arg;
-  }
-
-  public MessageType getType() {
-    return type;
-  }
-
-  public Object getObj() {
-    return serializedObj;
-  }
-
-  public Object getArg() {
-    return arg;
-  }
-}
+import java.io.Serializable;
+
+public class Message implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private MessageType type;
+  private Object serializedObj;
+  private Object arg;
+  private int requestId; // Matches a response to its request on a shared connection
+  private Priority priority = Priority.NORMAL; // Class of the processes a MsgProcessStartBatch starts
+  private Server sender; // Slave that sent a MsgProcessFinishBatch
+
+  public Message(MessageType type, Object obj, Object arg) {
+    this.type = type;
+    this.serializedObj = obj;
+    this.arg = arg;
+  }
+
+  public MessageType getType() {
+    return type;
+  }
+
+  public Object getObj() {
+    return serializedObj;
+  }
+
+  public Object getArg() {
+    return arg;
+  }
+
+  public int getRequestId() {
+    return requestId;
+  }
+
+  public void setRequestId(int requestId) {
+    this.requestId = requestId;
+  }
+
+  public Priority getPriority() {
+    return priority;
+  }
+
+  public void setPriority(Priority priority) {
+    this.priority = priority;
+  }
+
+  public Server getSender() {
+    return sender;
+  }
+
+  public void setSender(Server sender) {
+    this.sender = sender;
+  }
+}
@@ -0,0 +1,391 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Binary wire format for Message
+ * Frame: int length | int requestId | byte tag | body
+ * length counts everything after itself. The body layout depends on the
+ * MessageType. Only MigratableProcess objects are written with Java
+ * serialization, as an opaque length-prefixed blob, through ClassCache so a
+ * Slave can run classes it does not have.
+ */
+public class MessageCodec {
+  public static final int HEADER_SIZE = 4 + 1; // requestId + tag, after the length
+  public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+  // Encode msg as a complete frame, including the length prefix
+  public static byte[] encode(Message msg) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0); // Length, patched below
+    out.writeInt(msg.getRequestId());
+    out.writeByte(msg.getType().getTag());
+    writeBody(out, msg);
+    out.flush();
+    byte[] frame = bytes.toByteArray();
+    int length = frame.length - 4;
+    frame[0] = (byte)(length >>> 24);
+    frame[1] = (byte)(length >>> 16);
+    frame[2] = (byte)(length >>> 8);
+    frame[3] = (byte)length;
+    return frame;
+  }
+
+  // Decode the frame content that follows the length prefix
+  public static Message decode(byte[] buf, int off, int len) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, off, len));
+    int requestId = in.readInt();
+    int tag = in.readUnsignedByte();
+    MessageType type = MessageType.fromTag(tag);
+    if (type == null) {
+      throw new IOException("Unknown message tag " + tag);
+    }
+    Message msg = readBody(in, type);
+    msg.setRequestId(requestId);
+    return msg;
+  }
+
+  public static void write(DataOutputStream out, Message msg) throws IOException {
+    out.write(encode(msg));
+    out.flush();
+  }
+
+  public static Message read(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    byte[] buf = new byte[length];
+    in.readFully(buf);
+    return decode(buf, 0, length);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void writeBody(DataOutputStream out, Message msg) throws IOException {
+    switch (msg.getType()) {
+    case MsgNewSlaveRequest:
+    case MsgWorkRequest:
+      writeServer(out, (Server)msg.getObj());
+      break;
+    case MsgProcessStart:
+      out.writeInt((int)msg.getArg());
+      writeProcess(out, (MigratableProcess)msg.getObj());
+      break;
+    case MsgProcessStartBatch:
+      out.writeByte(msg.getPriority().ordinal());
+      writeIdList(out, (LinkedList<Integer>)msg.getArg());
+      for (MigratableProcess process : (LinkedList<MigratableProcess>)msg.getObj()) {
+        writeProcess(out, process);
+      }
+      break;
+    case MsgProcessFinish:
+    case MsgMigrateCommit:
+      out.writeInt((int)msg.getArg());
+      break;
+    case MsgMigrateRequest:
+      writeServer(out, (Server)msg.getObj());
+      writeIdList(out, (LinkedList<Integer>)msg.getArg());
+      break;
+    case MsgMigrateAck:
+      writeIdList(out, (LinkedList<Integer>)msg.getArg());
+      break;
+    case MsgProcessFinishBatch:
+      writeServer(out, msg.getSender());
+      writeFinishList(out, (LinkedList<Integer>)msg.getObj(), (LinkedList<Integer>)msg.getArg());
+      break;
+    case MsgLoadReport:
+      writeLoadReport(out, (LoadReport)msg.getObj());
+      break;
+    case MsgMigrateChunk:
+      writeChunk(out, (MigrationChunk)msg.getObj());
+      break;
+    case MsgClassRequest:
+    case MsgClassFile:
+      writeClassFile(out, (ClassFile)msg.getObj());
+      break;
+    case MsgResponseSuccess:
+    case MsgReponseError:
+    case MsgTerminate:
+      break;
+    }
+  }
+
+  private static Message readBody(DataInputStream in, MessageType type) throws IOException {
+    Object obj = null;
+    Object arg = null;
+    Priority priority = Priority.NORMAL;
+    Server sender = null;
+    switch (type) {
+    case MsgNewSlaveRequest:
+    case MsgWorkRequest:
+      obj = readServer(in);
+      break;
+    case MsgProcessStart:
+      arg = in.readInt();
+      obj = readProcess(in);
+      break;
+    case MsgProcessStartBatch:
+      priority = readPriority(in);
+      LinkedList<Integer> startIdList = readIdList(in);
+      LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+      for (int i = 0; i < startIdList.size(); i++) {
+        processList.add(readProcess(in));
+      }
+      obj = processList;
+      arg = startIdList;
+      break;
+    case MsgProcessFinish:
+    case MsgMigrateCommit:
+      arg = in.readInt();
+      break;
+    case MsgMigrateRequest:
+      obj = readServer(in);
+      arg = readIdList(in);
+      break;
+    case MsgMigrateAck:
+      arg = readIdList(in);
+      break;
+    case MsgProcessFinishBatch:
+      sender = readServer(in);
+      LinkedList<Integer> statusList = new LinkedList<Integer>();
+      LinkedList<Integer> finishedIdList = new LinkedList<Integer>();
+      readFinishList(in, statusList, finishedIdList);
+      obj = statusList;
+      arg = finishedIdList;
+      break;
+    case MsgLoadReport:
+      obj = readLoadReport(in);
+      break;
+    case MsgMigrateChunk:
+      obj = readChunk(in);
+      break;
+    case MsgClassRequest:
+    case MsgClassFile:
+      obj = readClassFile(in);
+      break;
+    case MsgResponseSuccess:
+    case MsgReponseError:
+    case MsgTerminate:
+      break;
+    }
+    Message msg = new Message(type, obj, arg);
+    msg.setPriority(priority);
+    msg.setSender(sender);
+    return msg;
+  }
+
+  private static Priority readPriority(DataInputStream in) throws IOException {
+    int ordinal = in.readUnsignedByte();
+    Priority priority = Priority.fromOrdinal(ordinal);
+    if (priority == null) {
+      throw new IOException("Unknown priority " + ordinal);
+    }
+    return priority;
+  }
+
+  private static void writeServer(DataOutputStream out, Server server) throws IOException {
+    out.writeUTF(server.getIP());
+    out.writeInt(server.getPort());
+    out.writeShort(server.getCores());
+  }
+
+  private static Server readServer(DataInputStream in) throws IOException {
+    String ip = in.readUTF();
+    int port = in.readInt();
+    Server server = new Server(ip, port);
+    server.setCores(in.readUnsignedShort());
+    return server;
+  }
+
+  private static void writeLoadReport(DataOutputStream out, LoadReport report) throws IOException {
+    writeServer(out, report.getSlave());
+    out.writeFloat((float)report.getCpuLoad());
+    out.writeLong(report.getHeapUsed());
+    out.writeLong(report.getHeapMax());
+    out.writeInt(report.getIdList().size());
+    Iterator<Double> loads = report.getThreadLoads().iterator();
+    for (int tid : report.getIdList()) {
+      out.writeInt(tid);
+      out.writeFloat(loads.next().floatValue());
+    }
+    out.writeShort(report.getCounters().length);
+    for (long counter : report.getCounters()) {
+      out.writeLong(counter);
+    }
+    out.writeBoolean(report.getLocalPaths() != null);
+    if (report.getLocalPaths() != null) {
+      writeStrings(out, report.getLocalPaths());
+      writeStrings(out, report.getWarmPaths());
+    }
+  }
+
+  private static LoadReport readLoadReport(DataInputStream in) throws IOException {
+    Server slave = readServer(in);
+    double cpuLoad = in.readFloat();
+    long heapUsed = in.readLong();
+    long heapMax = in.readLong();
+    LoadReport report = new LoadReport(slave, cpuLoad, heapUsed, heapMax);
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      int tid = in.readInt();
+      report.addThread(tid, in.readFloat());
+    }
+    long[] counters = new long[in.readUnsignedShort()];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = in.readLong();
+    }
+    report.setCounters(counters);
+    if (in.readBoolean()) {
+      List<String> localPaths = readStrings(in);
+      report.setLocality(localPaths, readStrings(in));
+    }
+    return report;
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    out.writeShort(strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int count = in.readUnsignedShort();
+    List<String> strings = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(in.readUTF());
+    }
+    return strings;
+  }
+
+  private static void writeIdList(DataOutputStream out, LinkedList<Integer> idList) throws IOException {
+    out.writeInt(idList.size());
+    for (int tid : idList) {
+      out.writeInt(tid);
+    }
+  }
+
+  private static LinkedList<Integer> readIdList(DataInputStream in) throws IOException {
+    LinkedList<Integer> idList = new LinkedList<Integer>();
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      idList.add(in.readInt());
+    }
+    return idList;
+  }
+
+  private static void writeFinishList(DataOutputStream out, LinkedList<Integer> statusList, LinkedList<Integer> idList)
+      throws IOException {
+    out.writeInt(idList.size());
+    Iterator<Integer> statuses = statusList.iterator();
+    for (int tid : idList) {
+      out.writeInt(tid);
+      out.writeByte(statuses.next());
+    }
+  }
+
+  private static void readFinishList(DataInputStream in, LinkedList<Integer> statusList, LinkedList<Integer> idList)
+      throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      idList.add(in.readInt());
+      statusList.add((int)in.readByte());
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, MigrationChunk chunk) throws IOException {
+    out.writeInt(chunk.getTid());
+    out.writeInt(chunk.getSeq());
+    out.writeByte((chunk.isLast() ? 1 : 0) | (chunk.isCompressed() ? 2 : 0) | chunk.getPriority().ordinal() << 2);
+    out.writeInt(chunk.getLength());
+    out.write(chunk.getData(), 0, chunk.getLength());
+  }
+
+  private static MigrationChunk readChunk(DataInputStream in) throws IOException {
+    int tid = in.readInt();
+    int seq = in.readInt();
+    int flags = in.readByte();
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new IOException("Bad chunk length " + length);
+    }
+    byte[] data = new byte[length];
+    in.readFully(data);
+    Priority priority = Priority.fromOrdinal(flags >> 2);
+    if (priority == null) {
+      throw new IOException("Unknown priority " + (flags >> 2) + " of thread " + tid);
+    }
+    return new MigrationChunk(tid, seq, (flags & 1) != 0, (flags & 2) != 0, priority, data, length);
+  }
+
+  private static void writeClassFile(DataOutputStream out, ClassFile file) throws IOException {
+    out.writeUTF(file.getName());
+    out.writeUTF(file.getHash());
+    if (file.getBytes() == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(file.getBytes().length);
+      out.write(file.getBytes());
+    }
+  }
+
+  private static ClassFile readClassFile(DataInputStream in) throws IOException {
+    String name = in.readUTF();
+    String hash = in.readUTF();
+    int length = in.readInt();
+    if (length > MAX_FRAME_SIZE) {
+      throw new IOException("Bad class file length " + length);
+    }
+    byte[] bytes = null;
+    if (length >= 0) {
+      bytes = new byte[length];
+      in.readFully(bytes);
+    }
+    return new ClassFile(name, hash, bytes);
+  }
+
+  private static void writeProcess(DataOutputStream out, MigratableProcess process) throws IOException {
+    byte[] blob = serializeProcess(process);
+    out.writeInt(blob.length);
+    out.write(blob);
+  }
+
+  private static MigratableProcess readProcess(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new IOException("Bad process length " + length);
+    }
+    byte[] blob = new byte[length];
+    in.readFully(blob);
+    return deserializeProcess(blob);
+  }
+
+  // MigratableProcess state is opaque to the codec, so it keeps Java serialization
+  public static byte[] serializeProcess(MigratableProcess process) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    ObjectOutputStream out = new ClassCache.Output(bytes);
+    out.writeObject(process);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public static MigratableProcess deserializeProcess(byte[] blob) throws IOException {
+    ObjectInputStream in = new ClassCache.Input(new ByteArrayInputStream(blob));
+    try {
+      return (MigratableProcess)in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unknown process class", e);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,4 @@
+public interface MessageHandler {
+  // Handle one request, reply through the session it arrived on
+  void handleMessage(Message msg, SocketListener.Session session);
+}
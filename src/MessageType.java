@@ -1,11 +1,56 @@
 public enum MessageType {
-  MsgNewSlaveRequest, // Slave to Master, adding Slave to Master's server list
-  MsgResponseSuccess, 
-  MsgReponseError,
-  MsgProcessStart,  // Master to Slave, starting thread in Slave
-  MsgProcessFinish, // Slave to Master, notifying thread finished in Slave
-  MsgBalanceRequestSrc, // Master to Slave, notifying Slave for load balancing
-  MsgBalanceResponse, // Slave to Master, migrating threads from Slave for load balancing 
-  MsgBalanceRequestDst, // Master to Slave, migrating threads to Slave for load balancing
-  MsgTerminate, // Master to Slave, terminate ProcessManger
-}
\ No newline at end of file
+  MsgNewSlaveRequest(1), // Slave to Master, adding Slave to Master's server list
+  MsgResponseSuccess(2), 
+  MsgReponseError(3),
+  MsgProcessStart(4),  // Master to Slave, starting thread in Slave
+  MsgProcessFinish(5), // Slave to Master, notifying thread finished in Slave
+  MsgTerminate(9), // Master to Slave, terminate ProcessManger
+  MsgProcessFinishBatch(10), // Slave to Master, notifying several threads finished in Slave
+  MsgLoadReport(11), // Slave to Master, periodic CPU, heap and per thread load
+  MsgMigrateRequest(12), // Master to source Slave, ship these threads to a destination Slave
+  MsgMigrateChunk(13), // Source Slave to destination Slave, part of a suspended thread
+  MsgMigrateAck(14), // Source Slave to Master, the threads the destination took
+  MsgProcessStartBatch(15), // Master to Slave, starting several threads in Slave
+  MsgWorkRequest(16), // Slave to Master, this Slave runs out of threads
+  MsgClassRequest(17), // Slave to Master, the bytecode of a process class the Slave lacks
+  MsgClassFile(18), // Master to Slave, answers MsgClassRequest
+  MsgMigrateCommit(19); // Source Slave to destination Slave, start a thread whose chunks are all in
+
+  private static final MessageType[] byTag = new MessageType[256];
+  static {
+    for (MessageType type : MessageType.values()) {
+      byTag[type.tag] = type;
+    }
+  }
+
+  private final int tag; // Wire tag, must never be reused for another type
+
+  private MessageType(int tag) {
+    this.tag = tag;
+  }
+
+  public int getTag() {
+    return this.tag;
+  }
+
+  // Safe to send twice, so Connection retries it when the link breaks before the response
+  public boolean isIdempotent() {
+    switch (this) {
+    case MsgNewSlaveRequest:
+    case MsgLoadReport:
+    case MsgWorkRequest:
+    case MsgClassRequest:
+    case MsgMigrateCommit:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  public static MessageType fromTag(int tag) {
+    if (tag < 0 || tag >= byTag.length) {
+      return null;
+    }
+    return byTag[tag];
+  }
+}
\ No newline at end of file
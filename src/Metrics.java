@@ -0,0 +1,192 @@
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+/*
+ * Process wide instrumentation, recorded on the hot paths. Recording is
+ * lock and allocation free, only reading a report allocates.
+ * Master and Slave both record, a Slave pushes slaveCounters() to Master
+ * in every load report. Exposed through JMX (MetricsMXBean) and the
+ * Master's stats command.
+ */
+public class Metrics implements MetricsMXBean {
+  // Round trip of the requests this process sent, by MessageType ordinal
+  private static final Histogram[] REQUEST = perType();
+  // Time the handler spent on the messages this process received
+  private static final Histogram[] HANDLE = perType();
+
+  public static final Histogram MASTER_LOCK_WAIT = new Histogram();
+  public static final Histogram MASTER_LOCK_HOLD = new Histogram();
+  public static final Histogram START_TO_RUN = new Histogram(); // Slave: handed to the executor until run()
+  public static final Histogram SUSPEND = new Histogram(); // Slave: asking a running process to suspend until it did
+  public static final Histogram MIGRATION = new Histogram(); // Slave: shipping one process to the destination
+
+  private static final AtomicLong MIGRATIONS = new AtomicLong();
+  private static final AtomicLong BYTES_MOVED = new AtomicLong();
+  private static final AtomicLong PREEMPTIONS = new AtomicLong(); // Slave: processes parked for a higher class
+  // Migrations in each of the last 60 seconds, slot second % 60, valid while its stamp is that second
+  private static final AtomicLongArray MINUTE = new AtomicLongArray(60);
+  private static final AtomicLongArray MINUTE_STAMP = new AtomicLongArray(60);
+  private static volatile SocketListener listener; // Its backlog is the dispatch queue depth
+
+  // Names of the values slaveCounters() returns, in order
+  public static final String[] SLAVE_COUNTERS = {"startToRun.count", "startToRun.p99", "suspend.count",
+    "suspend.p99", "migrations", "bytesMoved", "migrations/min", "finishQueue", "dispatchQueue", "preemptions",
+    "parked"};
+
+  private static Histogram[] perType() {
+    Histogram[] histograms = new Histogram[MessageType.values().length];
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new Histogram();
+    }
+    return histograms;
+  }
+
+  public static void requestDone(MessageType type, long startNanos) {
+    REQUEST[type.ordinal()].since(startNanos);
+  }
+
+  public static void handled(MessageType type, long startNanos) {
+    HANDLE[type.ordinal()].since(startNanos);
+  }
+
+  // One process shipped to another Slave
+  public static void migrated(long bytes, long startNanos) {
+    MIGRATION.since(startNanos);
+    MIGRATIONS.incrementAndGet();
+    BYTES_MOVED.addAndGet(bytes);
+    long second = System.currentTimeMillis() / 1000;
+    int slot = (int)(second % 60);
+    long stamp = MINUTE_STAMP.get(slot);
+    if (stamp != second && MINUTE_STAMP.compareAndSet(slot, stamp, second)) {
+      MINUTE.set(slot, 0);
+    }
+    MINUTE.incrementAndGet(slot);
+  }
+
+  public static void preempted() {
+    PREEMPTIONS.incrementAndGet();
+  }
+
+  public static double migrationsPerMinute() {
+    long second = System.currentTimeMillis() / 1000;
+    long total = 0;
+    for (int slot = 0; slot < 60; slot++) {
+      if (second - MINUTE_STAMP.get(slot) < 60) {
+        total += MINUTE.get(slot);
+      }
+    }
+    return total;
+  }
+
+  // Values named by SLAVE_COUNTERS, durations in microseconds
+  public static long[] slaveCounters(int finishQueue, int parked) {
+    return new long[] {START_TO_RUN.getCount(), START_TO_RUN.getPercentile(99) / 1000, SUSPEND.getCount(),
+      SUSPEND.getPercentile(99) / 1000, MIGRATIONS.get(), BYTES_MOVED.get(), (long)migrationsPerMinute(),
+      finishQueue, dispatchQueueDepth(), PREEMPTIONS.get(), parked};
+  }
+
+  public static void watch(SocketListener socketListener) {
+    listener = socketListener;
+  }
+
+  private static int dispatchQueueDepth() {
+    SocketListener current = listener;
+    return current == null ? 0 : current.getQueueDepth();
+  }
+
+  public static void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(),
+          new ObjectName("ProcessManager:type=Metrics"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Lines of the stats command
+  public static String report() {
+    StringBuilder out = new StringBuilder();
+    out.append("Requests sent\t\tcount\tp50_us\tp99_us\tmax_us\n");
+    appendTypes(out, REQUEST);
+    out.append("Messages handled\tcount\tp50_us\tp99_us\tmax_us\n");
+    appendTypes(out, HANDLE);
+    out.append("masterLock wait\t\t").append(MASTER_LOCK_WAIT).append("\n");
+    out.append("masterLock hold\t\t").append(MASTER_LOCK_HOLD).append("\n");
+    out.append("Start to run\t\t").append(START_TO_RUN).append("\n");
+    out.append("Suspend\t\t\t").append(SUSPEND).append("\n");
+    out.append("Migration\t\t").append(MIGRATION).append("\n");
+    out.append("Migrations ").append(MIGRATIONS.get()).append(", ").append((long)migrationsPerMinute())
+        .append("/min, ").append(BYTES_MOVED.get()).append(" bytes moved\n");
+    out.append("Dispatch queue ").append(dispatchQueueDepth()).append("\n");
+    out.append("Preemptions ").append(PREEMPTIONS.get()).append("\n");
+    return out.toString();
+  }
+
+  private static void appendTypes(StringBuilder out, Histogram[] histograms) {
+    for (MessageType type : MessageType.values()) {
+      Histogram histogram = histograms[type.ordinal()];
+      if (histogram.getCount() > 0) {
+        out.append(type).append(type.name().length() < 16 ? "\t\t" : "\t").append(histogram).append("\n");
+      }
+    }
+  }
+
+  private static Map<String, Long> p99(Histogram[] histograms) {
+    HashMap<String, Long> values = new HashMap<String, Long>();
+    for (MessageType type : MessageType.values()) {
+      Histogram histogram = histograms[type.ordinal()];
+      if (histogram.getCount() > 0) {
+        values.put(type.name(), histogram.getPercentile(99) / 1000);
+      }
+    }
+    return values;
+  }
+
+  public long getMigrations() {
+    return MIGRATIONS.get();
+  }
+
+  public long getBytesMoved() {
+    return BYTES_MOVED.get();
+  }
+
+  public long getPreemptions() {
+    return PREEMPTIONS.get();
+  }
+
+  public double getMigrationsPerMinute() {
+    return migrationsPerMinute();
+  }
+
+  public long getMasterLockWaitP99() {
+    return MASTER_LOCK_WAIT.getPercentile(99) / 1000;
+  }
+
+  public long getMasterLockHoldP99() {
+    return MASTER_LOCK_HOLD.getPercentile(99) / 1000;
+  }
+
+  public long getStartToRunP99() {
+    return START_TO_RUN.getPercentile(99) / 1000;
+  }
+
+  public long getSuspendP99() {
+    return SUSPEND.getPercentile(99) / 1000;
+  }
+
+  public Map<String, Long> getRequestLatencyP99() {
+    return p99(REQUEST);
+  }
+
+  public Map<String, Long> getHandleLatencyP99() {
+    return p99(HANDLE);
+  }
+
+  public String getReport() {
+    return report();
+  }
+}
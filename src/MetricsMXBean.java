@@ -0,0 +1,30 @@
+import java.util.Map;
+
+/*
+ * Metrics of this ProcessManager as seen through JMX, under
+ * ProcessManager:type=Metrics. Durations are in microseconds.
+ */
+public interface MetricsMXBean {
+  long getMigrations();
+
+  long getBytesMoved();
+
+  long getPreemptions();
+
+  double getMigrationsPerMinute();
+
+  long getMasterLockWaitP99();
+
+  long getMasterLockHoldP99();
+
+  long getStartToRunP99();
+
+  long getSuspendP99();
+
+  Map<String, Long> getRequestLatencyP99();
+
+  Map<String, Long> getHandleLatencyP99();
+
+  // Every line of the stats command
+  String getReport();
+}
@@ -1,5 +1,19 @@
 import java.io.Serializable;
 
 public interface MigratableProcess extends Runnable, Serializable { 
-  void suspend();
+  /*
+   * Stop at the next safe point and return from run(), waiting at most
+   * timeoutMillis. Returns false if no safe point was reached in time,
+   * the process then keeps running. See SafePoint.
+   */
+  boolean suspend(long timeoutMillis);
+
+  /*
+   * Hold still at the next safe point without returning from run(), so
+   * the Slave can checkpoint the process. Returns false if no safe point
+   * was reached within timeoutMillis. A true return is followed by resume().
+   */
+  boolean pause(long timeoutMillis);
+
+  void resume();
 }
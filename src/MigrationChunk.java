@@ -0,0 +1,54 @@
+/*
+ * One piece of a migrating process, carried by MsgMigrateChunk.
+ * The serialized process, deflated if compressed is set, is cut into
+ * chunks numbered from 0; the one with last set completes it. Each chunk
+ * carries the Priority the process runs with at the destination.
+ */
+public class MigrationChunk {
+  private int tid;
+  private int seq;
+  private boolean last;
+  private boolean compressed;
+  private Priority priority;
+  private byte[] data;
+  private int length;
+
+  public MigrationChunk(int tid, int seq, boolean last, boolean compressed, Priority priority, byte[] data,
+      int length) {
+    this.tid = tid;
+    this.seq = seq;
+    this.last = last;
+    this.compressed = compressed;
+    this.priority = priority;
+    this.data = data;
+    this.length = length;
+  }
+
+  public int getTid() {
+    return this.tid;
+  }
+
+  public int getSeq() {
+    return this.seq;
+  }
+
+  public boolean isLast() {
+    return this.last;
+  }
+
+  public boolean isCompressed() {
+    return this.compressed;
+  }
+
+  public Priority getPriority() {
+    return this.priority;
+  }
+
+  public byte[] getData() {
+    return this.data;
+  }
+
+  public int getLength() {
+    return this.length;
+  }
+}
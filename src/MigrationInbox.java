@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Destination side of MigrationOutputStream: deserializes each migrating
+ * process while its chunks come in and hands back the process once its
+ * last chunk is in. Chunks of one thread arrive in order on one connection.
+ * A reader thread per transfer takes the chunks from a queue of WINDOW,
+ * so no more than a few chunks of a process are held besides the objects
+ * read so far. A transfer that gets no chunk for TIMEOUT, or is replaced
+ * by a new transfer of the same thread, is dropped.
+ * A complete process is only held until the source commits it, so it runs
+ * on one side only: the source resumes it itself whenever the last chunk
+ * was not acknowledged. One not committed within 2 * TIMEOUT is dropped.
+ *   -Dpm.migrate.chunkTimeout=<ms>   default pm.net.requestTimeout
+ */
+public class MigrationInbox {
+  private static final int WINDOW = Integer.getInteger("pm.migrate.window", 4);
+  private static final long TIMEOUT = Long.getLong("pm.migrate.chunkTimeout", Connection.REQUEST_TIMEOUT);
+  private static final byte[] END = new byte[0]; // Queued after the last chunk
+  private static final byte[] ABORT = new byte[0]; // Queued when the transfer is dropped
+  private static final int COMMITTED = 4096; // Recent commits remembered, so a repeated commit succeeds
+
+  private HashMap<Integer, Transfer> partial; // Thread ID to the transfer in progress
+  private LinkedHashMap<Integer, Held> held; // Thread ID to the complete process awaiting commit, oldest first
+  private LinkedHashSet<Integer> committed; // Thread IDs committed lately, oldest first
+  private ExecutorService readers;
+
+  // A complete process waiting for the source to commit it
+  public static class Held {
+    private MigratableProcess process;
+    private Priority priority;
+    private long since = System.nanoTime();
+
+    Held(MigratableProcess process, Priority priority) {
+      this.process = process;
+      this.priority = priority;
+    }
+
+    public MigratableProcess getProcess() {
+      return this.process;
+    }
+
+    public Priority getPriority() {
+      return this.priority;
+    }
+  }
+
+  public MigrationInbox() {
+    this.partial = new HashMap<Integer, Transfer>();
+    this.held = new LinkedHashMap<Integer, Held>();
+    this.committed = new LinkedHashSet<Integer>();
+    this.readers = ProcessExecutors.createPool(4096, 0);
+  }
+
+  // Keep the process add() completed until commit(tid)
+  public void hold(int tid, MigratableProcess process, Priority priority) {
+    synchronized (this.held) {
+      this.expire();
+      this.held.remove(tid);
+      this.held.put(tid, new Held(process, priority));
+      this.committed.remove(tid);
+    }
+  }
+
+  /*
+   * The held process to start now, null if there is none. A repeated commit
+   * of a thread already handed out also returns null but sets isCommitted.
+   */
+  public Held commit(int tid) {
+    synchronized (this.held) {
+      this.expire();
+      Held entry = this.held.remove(tid);
+      if (entry != null) {
+        this.committed.add(tid);
+        if (this.committed.size() > COMMITTED) {
+          Iterator<Integer> oldest = this.committed.iterator();
+          oldest.next();
+          oldest.remove();
+        }
+      }
+      return entry;
+    }
+  }
+
+  public boolean isCommitted(int tid) {
+    synchronized (this.held) {
+      return this.committed.contains(tid);
+    }
+  }
+
+  // Drop processes the source never committed, call with held locked
+  private void expire() {
+    long limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(2 * TIMEOUT);
+    Iterator<Held> oldest = this.held.values().iterator();
+    while (oldest.hasNext()) {
+      if (oldest.next().since - limit >= 0) {
+        break;
+      }
+      oldest.remove();
+    }
+  }
+
+  // The completed process, null while more chunks are expected
+  public MigratableProcess add(MigrationChunk chunk) throws IOException {
+    Transfer transfer = null;
+    synchronized (this.partial) {
+      if (chunk.getSeq() == 0) {
+        // A new transfer of this thread replaces any broken earlier one
+        Transfer broken = this.partial.remove(chunk.getTid());
+        if (broken != null) {
+          broken.abort();
+        }
+        transfer = new Transfer(chunk.getTid(), chunk.isCompressed());
+        this.partial.put(chunk.getTid(), transfer);
+        transfer.result = this.readers.submit(transfer);
+      } else {
+        transfer = this.partial.get(chunk.getTid());
+      }
+      if (transfer == null) {
+        throw new IOException("Chunk " + chunk.getSeq() + " of thread " + chunk.getTid() + " without a start");
+      }
+      if (chunk.isLast()) {
+        this.partial.remove(chunk.getTid());
+      }
+    }
+    // The codec gives every chunk its own array, it is queued as it is
+    byte[] data = chunk.getData();
+    if (chunk.getLength() != data.length) {
+      data = new byte[chunk.getLength()];
+      System.arraycopy(chunk.getData(), 0, data, 0, data.length);
+    }
+    if (!transfer.offer(data) || (chunk.isLast() && !transfer.offer(END))) {
+      this.drop(transfer);
+      throw new IOException("Thread " + chunk.getTid() + " is not read, transfer dropped");
+    }
+    if (!chunk.isLast()) {
+      return null;
+    }
+
+    try {
+      return transfer.result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } catch (TimeoutException e) {
+      transfer.abort();
+      throw new IOException("Thread " + chunk.getTid() + " not read in time");
+    } catch (InterruptedException e) {
+      transfer.abort();
+      throw new IOException(e);
+    }
+  }
+
+  private void drop(Transfer transfer) {
+    synchronized (this.partial) {
+      if (this.partial.get(transfer.tid) == transfer) {
+        this.partial.remove(transfer.tid);
+      }
+    }
+    transfer.abort();
+  }
+
+  // The chunks of one process as a stream, read by its reader thread
+  private class Transfer extends InputStream implements Callable<MigratableProcess> {
+    private int tid;
+    private boolean compressed;
+    private ArrayBlockingQueue<byte[]> chunks;
+    private byte[] current;
+    private int pos;
+    private volatile boolean aborted;
+    private Future<MigratableProcess> result;
+
+    Transfer(int tid, boolean compressed) {
+      this.tid = tid;
+      this.compressed = compressed;
+      this.chunks = new ArrayBlockingQueue<byte[]>(WINDOW + 1);
+    }
+
+    // Waits while the reader is WINDOW chunks behind, false if it stopped reading
+    boolean offer(byte[] data) {
+      try {
+        return !this.aborted && this.chunks.offer(data, TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+
+    void abort() {
+      this.aborted = true;
+      this.chunks.clear();
+      this.chunks.offer(ABORT);
+    }
+
+    public MigratableProcess call() throws Exception {
+      try {
+        InputStream in = this.compressed ? new InflaterInputStream(this) : this;
+        ObjectInputStream objIn = new ClassCache.Input(in);
+        try {
+          return (MigratableProcess)objIn.readObject();
+        } finally {
+          objIn.close();
+        }
+      } catch (Exception e) {
+        // Broken or timed out, its chunks go with it
+        MigrationInbox.this.drop(this);
+        throw e;
+      }
+    }
+
+    public int read() throws IOException {
+      if (!this.fill()) {
+        return -1;
+      }
+      return this.current[this.pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!this.fill()) {
+        return -1;
+      }
+      int n = Math.min(len, this.current.length - this.pos);
+      System.arraycopy(this.current, this.pos, b, off, n);
+      this.pos += n;
+      return n;
+    }
+
+    // False at the end of the process
+    private boolean fill() throws IOException {
+      while (this.current == null || this.pos == this.current.length) {
+        if (this.current == END) {
+          return false;
+        }
+        byte[] next = null;
+        try {
+          next = this.chunks.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        if (next == null || next == ABORT || this.aborted) {
+          throw new IOException("Transfer of thread " + this.tid + (next == null ? " timed out" : " aborted"));
+        }
+        this.current = next;
+        this.pos = 0;
+      }
+      return true;
+    }
+  }
+}
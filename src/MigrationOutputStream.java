@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Streams one process to the destination Slave as MsgMigrateChunks while
+ * it is being serialized, so neither side holds more than a few chunks of
+ * it in flight. At most pm.migrate.window chunks wait for their response.
+ * The destination runs it only after the source sends MsgMigrateCommit.
+ *   -Dpm.migrate.chunk=<bytes>       chunk size, default 256KB
+ *   -Dpm.migrate.window=<n>          chunks in flight, default 4
+ *   -Dpm.migrate.compress=true       deflate the serialized process
+ */
+public class MigrationOutputStream extends OutputStream {
+  private static final int CHUNK_SIZE = Integer.getInteger("pm.migrate.chunk", 256 * 1024);
+  private static final int WINDOW = Integer.getInteger("pm.migrate.window", 4);
+  private static final boolean COMPRESS = Boolean.getBoolean("pm.migrate.compress");
+
+  private Connection connection;
+  private int tid;
+  private Priority priority;
+  private byte[] chunk;
+  private int count;
+  private int seq;
+  private long bytesSent;
+  private LinkedList<Connection.PendingReply> inFlight;
+
+  private MigrationOutputStream(Connection connection, int tid, Priority priority) {
+    this.connection = connection;
+    this.tid = tid;
+    this.priority = priority;
+    this.chunk = new byte[CHUNK_SIZE];
+    this.inFlight = new LinkedList<Connection.PendingReply>();
+  }
+
+  /*
+   * Serialize process straight onto the connection, to run there as priority.
+   * Returns the bytes sent, throws if the destination did not take it.
+   */
+  public static long send(Connection connection, int tid, Priority priority, MigratableProcess process)
+      throws IOException {
+    MigrationOutputStream chunks = new MigrationOutputStream(connection, tid, priority);
+    Deflater deflater = null;
+    OutputStream out = chunks;
+    if (COMPRESS) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+      out = new DeflaterOutputStream(chunks, deflater, 64 * 1024);
+    }
+    try {
+      ObjectOutputStream objOut = new ClassCache.Output(out);
+      objOut.writeObject(process);
+      objOut.close();
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+    return chunks.bytesSent;
+  }
+
+  public void write(int b) throws IOException {
+    if (this.count == this.chunk.length) {
+      this.sendChunk(false);
+    }
+    this.chunk[this.count++] = (byte)b;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (this.count == this.chunk.length) {
+        this.sendChunk(false);
+      }
+      int n = Math.min(len, this.chunk.length - this.count);
+      System.arraycopy(b, off, this.chunk, this.count, n);
+      this.count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  // Send the rest as the last chunk and wait until every chunk is acknowledged
+  public void close() throws IOException {
+    this.sendChunk(true);
+    while (!this.inFlight.isEmpty()) {
+      this.awaitOldest();
+    }
+  }
+
+  private void sendChunk(boolean last) throws IOException {
+    if (this.inFlight.size() >= WINDOW) {
+      this.awaitOldest();
+    }
+    MigrationChunk piece = new MigrationChunk(this.tid, this.seq++, last, COMPRESS, this.priority, this.chunk,
+        this.count);
+    this.inFlight.add(this.connection.send(new Message(MessageType.MsgMigrateChunk, piece, null)));
+    this.bytesSent += this.count;
+    // The frame is already encoded, the buffer can be refilled
+    this.count = 0;
+  }
+
+  private void awaitOldest() throws IOException {
+    Message response = this.inFlight.removeFirst().await(Connection.REQUEST_TIMEOUT);
+    if (response == null || response.getType() != MessageType.MsgResponseSuccess) {
+      throw new IOException("Destination refused chunk of thread " + this.tid);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/*
+ * Plans one whole load balance pass over a snapshot of the slaves.
+ * Greedy: the most expensive slave gives the cheapest one threads, as many
+ * as it has above the cluster's average cost or the cheapest has room for
+ * below it, then the next pair is taken, until no single thread would
+ * narrow the gap. The machine wide terms of the cost do not move with
+ * threads, so a giver that cannot move a thread, or a taker without room
+ * for one, is dropped and the next one tried. A slave only gives or only receives in one plan,
+ * so the sources can run in parallel without moving a thread twice.
+ * steal() plans a single move toward one idle Slave that asked for work.
+ */
+public class MigrationPlanner {
+
+  // Threads to take from one source and how many of them go to each destination
+  public static class Move {
+    private Server src;
+    private int count;
+    private LinkedHashMap<Server, Integer> dstCounts;
+
+    Move(Server src) {
+      this.src = src;
+      this.dstCounts = new LinkedHashMap<Server, Integer>();
+    }
+
+    public Server getSrc() {
+      return this.src;
+    }
+
+    public int getCount() {
+      return this.count;
+    }
+
+    public Map<Server, Integer> getDstCounts() {
+      return this.dstCounts;
+    }
+
+    void add(Server dst, int count) {
+      Integer current = this.dstCounts.get(dst);
+      this.dstCounts.put(dst, current == null ? count : current + count);
+      this.count += count;
+    }
+  }
+
+  // Cost of a slave as the plan changes it
+  private static class Node {
+    Server server;
+    int threads;
+    int cores;
+    double load; // Load of one of its threads
+    double cost;
+    Move move; // Non null once it gives
+    boolean receives;
+
+    Node(Server server) {
+      this.server = server;
+      this.threads = server.getThreadSet().size();
+      this.cores = server.getCores();
+      this.load = server.getCostPerThread() * this.cores;
+      this.cost = server.getCost();
+    }
+  }
+
+  // Call with masterLock held, the plan only reads the servers
+  public static List<Move> plan(Iterable<Server> servers) {
+    PriorityQueue<Node> givers = new PriorityQueue<Node>(11, new Comparator<Node>() {
+      public int compare(Node a, Node b) {
+        return Double.compare(b.cost, a.cost);
+      }
+    });
+    PriorityQueue<Node> takers = new PriorityQueue<Node>(11, new Comparator<Node>() {
+      public int compare(Node a, Node b) {
+        return Double.compare(a.cost, b.cost);
+      }
+    });
+    double coreCost = 0;
+    int cores = 0;
+    for (Server server : servers) {
+      Node node = new Node(server);
+      givers.add(node);
+      takers.add(node);
+      coreCost += node.cost * node.cores;
+      cores += node.cores;
+    }
+    double average = cores == 0 ? 0 : coreCost / cores;
+
+    ArrayList<Move> moves = new ArrayList<Move>();
+    while (!givers.isEmpty() && !takers.isEmpty()) {
+      Node src = givers.peek();
+      Node dst = takers.peek();
+      if (src == dst || src.receives || dst.move != null) {
+        // Already on the other side of the plan
+        if (src.receives || src == dst) {
+          givers.poll();
+        }
+        if (dst.move != null || src == dst) {
+          takers.poll();
+        }
+        continue;
+      }
+      if (src.threads < 1) {
+        // Expensive for its machine load alone, nothing to give
+        givers.poll();
+        continue;
+      }
+      // Each thread lowers src by load / src cores and raises dst by load / dst cores
+      double step = src.load / src.cores + src.load / dst.cores;
+      int count = Math.min(src.threads, (int)((src.cost - dst.cost) / step));
+      long excess = Math.round((src.cost - average) * src.cores / src.load);
+      if (count < 1 || excess < 1) {
+        // Not even with the cheapest taker, or not above the mean by a whole thread
+        givers.poll();
+        continue;
+      }
+      long room = Math.round((average - dst.cost) * dst.cores / src.load);
+      if (room < 1) {
+        takers.poll();
+        continue;
+      }
+      count = (int)Math.min(count, Math.min(excess, room));
+      givers.poll();
+      takers.poll();
+      if (src.move == null) {
+        src.move = new Move(src.server);
+        moves.add(src.move);
+      }
+      src.move.add(dst.server, count);
+      dst.receives = true;
+      src.threads -= count;
+      src.cost -= count * src.load / src.cores;
+      dst.threads += count;
+      dst.cost += count * src.load / dst.cores;
+      givers.add(src);
+      takers.add(dst);
+    }
+    return moves;
+  }
+
+  /*
+   * Work for thief: the most expensive Slave not in busy gives it as many
+   * threads as bring the two closest in cost, but no more than evens out
+   * their threads per core. Null if no single thread would narrow the gap.
+   * Call with masterLock held.
+   */
+  public static Move steal(Iterable<Server> servers, Server thief, Set<Server> busy) {
+    Server victim = null;
+    for (Server server : servers) {
+      if (server != thief && !busy.contains(server) && !server.getThreadSet().isEmpty()
+          && (victim == null || server.getCost() > victim.getCost())) {
+        victim = server;
+      }
+    }
+    if (victim == null) {
+      return null;
+    }
+    Node src = new Node(victim);
+    Node dst = new Node(thief);
+    double step = src.load / src.cores + src.load / dst.cores;
+    int count = Math.min(src.threads, (int)((src.cost - dst.cost) / step));
+    // The machine wide terms of the cost do not move with threads, never leave thief the busier per core
+    count = Math.min(count, (src.threads * dst.cores - dst.threads * src.cores) / (src.cores + dst.cores));
+    if (count < 1) {
+      return null;
+    }
+    Move move = new Move(victim);
+    move.add(thief, count);
+    return move;
+  }
+}
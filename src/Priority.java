@@ -0,0 +1,27 @@
+/*
+ * Class of a process, given at submission and kept across migrations.
+ * Declared from most to least important; the ordinal is the wire value,
+ * so the order must never change.
+ */
+public enum Priority {
+  HIGH, // Latency sensitive, a full Slave parks lower classes to run it
+  NORMAL, // Everything submitted without -p
+  BATCH; // Scans and other throughput work, parked and moved first
+
+  // "high", "normal" or "batch", any case
+  public static Priority parse(String name) throws Exception {
+    try {
+      return Priority.valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new Exception("Unknown priority " + name + ", use high, normal or batch");
+    }
+  }
+
+  public static Priority fromOrdinal(int ordinal) {
+    Priority[] values = Priority.values();
+    if (ordinal < 0 || ordinal >= values.length) {
+      return null;
+    }
+    return values[ordinal];
+  }
+}
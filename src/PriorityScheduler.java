@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/*
+ * Decides which processes of a Slave run and which wait, by Priority.
+ * Up to slots processes run freely. On a full Slave a new process parks
+ * the oldest running process of a lower class, waits itself if every
+ * running process is of a higher class, and otherwise shares the cores
+ * with its own class as before. A parked process holds no thread, it
+ * runs again, highest class first, once a slot frees up, or leaves when
+ * Master migrates it away.
+ * Only decides, the caller suspends and starts the processes.
+ * Not thread safe, callers hold slaveLock.
+ */
+public class PriorityScheduler {
+  private int slots; // 0 never parks anything
+  private ArrayList<LinkedHashSet<ProcessTask>> running; // By Priority ordinal, oldest first
+  private ArrayList<LinkedHashSet<ProcessTask>> parked;
+  private LinkedHashSet<ProcessTask> parking; // Being suspended to park, their slot is already given away
+  private int runningCount;
+  private int parkedCount;
+
+  public PriorityScheduler(int slots) {
+    this.slots = slots;
+    int classes = Priority.values().length;
+    this.running = new ArrayList<LinkedHashSet<ProcessTask>>(classes);
+    this.parked = new ArrayList<LinkedHashSet<ProcessTask>>(classes);
+    for (int i = 0; i < classes; i++) {
+      this.running.add(new LinkedHashSet<ProcessTask>());
+      this.parked.add(new LinkedHashSet<ProcessTask>());
+    }
+    this.parking = new LinkedHashSet<ProcessTask>();
+  }
+
+  public int getParkedCount() {
+    return this.parkedCount;
+  }
+
+  /*
+   * A new process arrives. Returns the one that has to make room: null if
+   * there is none, a running process of a lower class to suspend and hand
+   * to parked(), or task itself when it has to wait without starting.
+   */
+  public ProcessTask admit(ProcessTask task) {
+    int mine = task.getPriority().ordinal();
+    int lowest = this.lowestRunning();
+    if (this.slots <= 0 || this.runningCount < this.slots || lowest == mine) {
+      this.addRunning(task);
+      return null;
+    }
+    if (lowest < mine) {
+      this.parked.get(mine).add(task);
+      this.parkedCount++;
+      return task;
+    }
+    ProcessTask victim = this.running.get(lowest).iterator().next();
+    this.running.get(lowest).remove(victim);
+    this.runningCount--;
+    this.parking.add(victim);
+    this.addRunning(task);
+    return victim;
+  }
+
+  /*
+   * victim stopped at a safe point and waits as task, a new ProcessTask of
+   * the same process. Returns a parked process to start now, or null.
+   */
+  public ProcessTask parked(ProcessTask victim, ProcessTask task) {
+    this.parking.remove(victim);
+    this.parked.get(task.getPriority().ordinal()).add(task);
+    this.parkedCount++;
+    return this.next();
+  }
+
+  // victim did not reach a safe point and keeps running
+  public void parkFailed(ProcessTask victim) {
+    if (this.parking.remove(victim)) {
+      this.addRunning(victim);
+    }
+  }
+
+  /*
+   * task finished, migrated away or was dropped, whether it ran, waited or
+   * was being parked. Returns a parked process to start now, or null.
+   */
+  public ProcessTask leave(ProcessTask task) {
+    int mine = task.getPriority().ordinal();
+    if (this.running.get(mine).remove(task)) {
+      this.runningCount--;
+    } else if (this.parked.get(mine).remove(task)) {
+      this.parkedCount--;
+    } else {
+      this.parking.remove(task);
+    }
+    return this.next();
+  }
+
+  public void clear() {
+    for (int i = 0; i < this.running.size(); i++) {
+      this.running.get(i).clear();
+      this.parked.get(i).clear();
+    }
+    this.parking.clear();
+    this.runningCount = 0;
+    this.parkedCount = 0;
+  }
+
+  // The oldest parked process of the highest class once a slot is free
+  private ProcessTask next() {
+    if (this.parkedCount == 0 || this.runningCount >= this.slots) {
+      return null;
+    }
+    for (int i = 0; i < this.parked.size(); i++) {
+      Iterator<ProcessTask> it = this.parked.get(i).iterator();
+      if (it.hasNext()) {
+        ProcessTask task = it.next();
+        it.remove();
+        this.parkedCount--;
+        this.addRunning(task);
+        return task;
+      }
+    }
+    return null;
+  }
+
+  private void addRunning(ProcessTask task) {
+    this.running.get(task.getPriority().ordinal()).add(task);
+    this.runningCount++;
+  }
+
+  // Ordinal of the lowest class running, -1 if none runs
+  private int lowestRunning() {
+    for (int i = this.running.size() - 1; i >= 0; i--) {
+      if (!this.running.get(i).isEmpty()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
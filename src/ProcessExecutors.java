@@ -0,0 +1,61 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Executors that run MigratableProcesses on a Slave. The CPU time of a
+ * virtual thread cannot be sampled, so on virtual threads Master never
+ * measures the load of a thread and balances by a fixed guess of it. The
+ * pool is the default since the cost Master balances by always counts it.
+ *   -Dpm.slave.executor=pool|virtual   default pool, virtual needs a JDK with virtual threads
+ *   -Dpm.slave.threads=<n>             pool: most processes running at once, the rest queue
+ *   -Dpm.slave.stackSize=<bytes>       pool: stack size of a process thread
+ */
+public class ProcessExecutors {
+  private static final int DEFAULT_POOL_THREADS = 4096;
+  private static final long DEFAULT_STACK_SIZE = 256 * 1024;
+
+  public static ExecutorService create() {
+    String kind = System.getProperty("pm.slave.executor", "pool");
+    if (kind.equals("virtual")) {
+      ExecutorService executor = createVirtual();
+      if (executor != null) {
+        System.out.println("Running processes on virtual threads, their CPU load is not measured");
+        return executor;
+      }
+    }
+    int threads = Integer.getInteger("pm.slave.threads", DEFAULT_POOL_THREADS);
+    System.out.println("Running processes on a pool of up to " + threads + " threads");
+    return createPool(threads, Long.getLong("pm.slave.stackSize", DEFAULT_STACK_SIZE));
+  }
+
+  // Executors.newVirtualThreadPerTaskExecutor, looked up so older JDKs still build and run
+  private static ExecutorService createVirtual() {
+    try {
+      Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)factory.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  public static ExecutorService createPool(int threads, final long stackSize) {
+    ThreadFactory factory = new ThreadFactory() {
+      private AtomicInteger count = new AtomicInteger(0);
+
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(null, task, "process-" + this.count.incrementAndGet(), stackSize);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), factory);
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+}
@@ -1,20 +1,32 @@
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.lang.reflect.Constructor;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
-import com.google.common.collect.MinMaxPriorityQueue;
-
 /**
  * 
  * @author LI FANGSHI, Mingyuan Li
@@ -24,38 +36,80 @@ public class ProcessManager {
   private static final int SUCCESS = 1;
   private static final int ERROR = -1;
   private static final int MASTER_PORT = 15619;
+  private static final long FINISH_LINGER = Long.getLong("pm.finish.linger", 5); // ms to collect finishes into one batch
+  private static final long SUSPEND_TIMEOUT = Long.getLong("pm.suspend.timeout", 5000); // ms to reach a safe point
+  private static final int BALANCE_THREADS = Integer.getInteger("pm.balance.threads", 16); // Sources migrated at once
+  private static final long REPORT_INTERVAL = Long.getLong("pm.report.interval", 5000); // ms between load reports
+  private static final long LEASE_TIMEOUT = Long.getLong("pm.lease.timeout", 3 * REPORT_INTERVAL); // ms without a report
+  private static final long REPORT_TIMEOUT = Math.min(Connection.REQUEST_TIMEOUT, REPORT_INTERVAL); // ms for Master to take a report, well within the lease
+  private static final long MIGRATE_TIMEOUT = Long.getLong("pm.migrate.timeout", 120000); // ms for a source to ship threads
+  private static final long CHECKPOINT_INTERVAL = Long.getLong("pm.checkpoint.interval", 30000); // ms, 0 turns it off
+  private static final int STEAL_LOW = Integer.getInteger("pm.steal.low", -1); // Ask for work below this many threads, -1 is one per core
+  private static final long STEAL_INTERVAL = Long.getLong("pm.steal.interval", 1000); // ms between two asks for work
+  private static final int SUBMIT_BATCH = Integer.getInteger("pm.submit.batch", 1000); // Processes per MsgProcessStartBatch
+  private static final int SLAVE_SLOTS = Integer.getInteger("pm.slave.slots", -1); // Run before parking lower classes, -1 is one per core, 0 never parks
+  private static final String LOCAL_PATHS = System.getProperty("pm.locality.paths", ""); // Comma separated directories on this Slave's own disks
+  private static final int WARM_FILES = Integer.getInteger("pm.locality.warm", 64); // Input files of recent processes reported as warm
+  private static final String CLASS_DIR = System.getProperty("pm.class.dir", "classes"); // Every process class version Master shipped
   private boolean isMaster;
   private Server master;
   private Server localhost;
+  private HashMap<String, Connection> connections; // Persistent connections to peers, keyed by IP:Port
   
   // Master
   private ReentrantLock masterLock;
-  private MinMaxPriorityQueue<Server> masterServerList; // List of slave servers
+  private ServerLoadIndex masterServerList; // List of slave servers, ordered by load
+  private ExecutorService balanceExecutor; // Runs the transfers of one load balance plan
   private int threadId = 0; // Thread Id for next new thread
+  private HashSet<Server> masterBusy; // Sources of a migration in progress, guarded by masterLock
+  private HashMap<Integer, GrepJob> masterJobs; // Parallel greps by the thread ID of their range and merge threads
   
   // Slave
   private ReentrantLock slaveLock;
-  private LinkedList<Thread> slaveThreadList; // List of running threads
-  private HashMap<Thread, Integer> slaveThreadIdMap;  // Mapping from Thread to thread ID
-  private HashMap<Thread, MigratableProcess> slaveThreadMPMap;  // Mapping from Thread to MigratableProcess
+  private TreeMap<Integer, ProcessTask> slaveTaskMap; // Mapping from thread ID to running process
+  private ExecutorService slaveExecutor; // Runs the processes, see ProcessExecutors
+  private PriorityScheduler slaveScheduler; // Which processes run and which are parked, guarded by slaveLock
+  private LinkedBlockingQueue<ProcessTask> slaveFinishQueue; // Finished processes not yet reported to Master
+  private AtomicLong slaveLastWorkRequest = new AtomicLong(); // currentTimeMillis of the last MsgWorkRequest
+  private MigrationInbox slaveInbox; // Processes migrating in, chunk by chunk
+  private AtomicLong slaveLeaseRenewed = new AtomicLong(System.nanoTime()); // nanoTime the last report Master took was sent
+  private Object slaveFenceLock = new Object(); // Held by fence, unfence and rejoin
+  private LinkedList<ProcessTask> slaveFenced; // Suspended by fence(), null when not fenced, guarded by slaveFenceLock
+  private CheckpointStore slaveCheckpoints; // Null when checkpointing is off
+  private ArrayList<String> slaveLocalPaths; // LOCAL_PATHS, absolute
+  private LinkedHashSet<String> slaveWarmFiles; // Input files of recent processes, oldest first, guarded by slaveLock
+  private int slaveLocalityVersion; // Bumped when slaveWarmFiles changes, guarded by slaveLock
 
   public ProcessManager(boolean isMaster, Server master, Server localhost) {    
     this.isMaster = isMaster;
+    this.connections = new HashMap<String, Connection>();
     if (this.isMaster) {
-      this.masterServerList = MinMaxPriorityQueue.<Server>create();
-      this.masterLock = new ReentrantLock();
+      this.masterServerList = new ServerLoadIndex();
+      this.masterJobs = new HashMap<Integer, GrepJob>();
+      this.masterBusy = new HashSet<Server>();
+      this.masterLock = new TimedLock(Metrics.MASTER_LOCK_WAIT, Metrics.MASTER_LOCK_HOLD);
+      this.balanceExecutor = ProcessExecutors.createPool(BALANCE_THREADS, 0);
     } else {
       this.master = master;
       this.localhost = localhost;
       this.slaveLock = new ReentrantLock();
-      this.slaveThreadList = new LinkedList<Thread>();
-      this.slaveThreadIdMap = new HashMap<Thread, Integer>();
-      this.slaveThreadMPMap = new HashMap<Thread, MigratableProcess>();
+      this.slaveTaskMap = new TreeMap<Integer, ProcessTask>();
+      this.slaveExecutor = ProcessExecutors.create();
+      this.slaveScheduler = new PriorityScheduler(SLAVE_SLOTS < 0 ? localhost.getCores() : SLAVE_SLOTS);
+      this.slaveFinishQueue = new LinkedBlockingQueue<ProcessTask>();
+      this.slaveInbox = new MigrationInbox();
+      this.slaveLocalPaths = new ArrayList<String>();
+      for (String path : LOCAL_PATHS.split(",")) {
+        if (!path.trim().equals("")) {
+          this.slaveLocalPaths.add(new File(path.trim()).getAbsolutePath());
+        }
+      }
+      this.slaveWarmFiles = new LinkedHashSet<String>();
     }    
   }
 
   @SuppressWarnings("unchecked")
-  private int processMessage(Message msg, Socket socket) {    
+  private int processMessage(Message msg, SocketListener.Session session) {    
     MessageType type = msg.getType();
     if (type == MessageType.MsgNewSlaveRequest) {
       /*
@@ -65,17 +119,74 @@ public class ProcessManager {
       Server slave = (Server)msg.getObj();
       this.masterLock.lock();
       try {
-        this.masterServerList.offer(slave);
+        Server known = this.masterServerList.getServer(slave.getIP(), slave.getPort());
+        if (known == null) {
+          this.masterServerList.offer(slave);
+          known = slave;
+        }
+        known.leaseEnd = System.currentTimeMillis() + LEASE_TIMEOUT;
       } finally {
         this.masterLock.unlock();
       }
       this.printWithPrompt("MsgNewSlaveRequest processed!");
       
       Message response = new Message(MessageType.MsgResponseSuccess, null, null);
-      if (this.sendProcessMessageResponse(response, socket) == false) {
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
         System.out.println("sendProcessMessageResponse failed!");
         return ProcessManager.ERROR;
       }
+    } else if (type == MessageType.MsgWorkRequest) {
+      /*
+       * Master get this msg from a Slave that runs out of threads
+       * msg.serializedObj is the Slave
+       * The most expensive Slave is asked to ship it threads right away, without waiting for the answer
+       */
+      Server reported = (Server)msg.getObj();
+      MigrationPlanner.Move move = null;
+      Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+      this.masterLock.lock();
+      try {
+        Server thief = this.masterServerList.getServer(reported.getIP(), reported.getPort());
+        if (thief == null) {
+          response = new Message(MessageType.MsgReponseError, null, null);
+        } else {
+          move = MigrationPlanner.steal(this.masterServerList, thief, this.masterBusy);
+        }
+      } finally {
+        this.masterLock.unlock();
+      }
+      if (move != null) {
+        final MigrationPlanner.Move steal = move;
+        this.printWithPrompt(reported.getIP() + ":" + reported.getPort() + " steals " + move.getCount()
+            + " threads from " + move.getSrc().getIP() + ":" + move.getSrc().getPort());
+        this.balanceExecutor.execute(new Runnable() {
+          public void run() {
+            ProcessManager.this.migrate(steal);
+          }
+        });
+      }
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
+        this.printWithPrompt("sendProcessMessageResponse failed!");
+        return ProcessManager.ERROR;
+      }
+    } else if (type == MessageType.MsgClassRequest) {
+      /*
+       * Master get this msg from a Slave that deserializes a class it lacks
+       * msg.serializedObj is the ClassFile naming the class and the version it needs
+       */
+      ClassFile request = (ClassFile)msg.getObj();
+      ClassFile file = ClassCache.find(request.getName(), request.getHash());
+      Message response = null;
+      if (file == null) {
+        this.printWithPrompt("No class file for " + request.getName() + " " + request.getHash() + "!");
+        response = new Message(MessageType.MsgReponseError, null, null);
+      } else {
+        response = new Message(MessageType.MsgClassFile, file, null);
+      }
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
+        this.printWithPrompt("sendProcessMessageResponse failed!");
+        return ProcessManager.ERROR;
+      }
     } else if (type == MessageType.MsgProcessStart) {
       /* 
        * Slave get this msg from Master, starting the thread
@@ -84,21 +195,33 @@ public class ProcessManager {
        */
       MigratableProcess process = (MigratableProcess)msg.getObj();
       int tID = (int)msg.getArg();
-      Thread thread = new Thread(process);
-      this.slaveLock.lock();
-      try {
-        this.slaveThreadList.add(thread);
-        this.slaveThreadIdMap.put(thread, tID);
-        this.slaveThreadMPMap.put(thread, process);
-      } finally {
-        this.slaveLock.unlock();
-      }
-      thread.start();
+      this.startProcess(tID, process, Priority.NORMAL);
       System.out.println("Start thread " + tID + "!");
       System.out.println("MsgProcessStart processed!");
       
       Message response = new Message(MessageType.MsgResponseSuccess, null, null);
-      if (this.sendProcessMessageResponse(response, socket) == false) {
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
+        System.out.println("sendProcessMessageResponse failed!");
+        return ProcessManager.ERROR;
+      }
+    } else if (type == MessageType.MsgProcessStartBatch) {
+      /*
+       * Slave get this msg from Master, starting several threads
+       * msg.serializedObj is the list of MigratableProcesses
+       * msg.arg is the list of their thread IDs, msg.priority their class
+       */
+      @SuppressWarnings("unchecked")
+      LinkedList<MigratableProcess> processList = (LinkedList<MigratableProcess>)msg.getObj();
+      @SuppressWarnings("unchecked")
+      LinkedList<Integer> idList = (LinkedList<Integer>)msg.getArg();
+      Iterator<Integer> ids = idList.iterator();
+      for (MigratableProcess process : processList) {
+        this.startProcess(ids.next(), process, msg.getPriority());
+      }
+      System.out.println("MsgProcessStartBatch processed! " + idList.size() + " threads started");
+
+      Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
         System.out.println("sendProcessMessageResponse failed!");
         return ProcessManager.ERROR;
       }
@@ -110,189 +233,754 @@ public class ProcessManager {
        */
       int tid = (int)msg.getArg();
       removeThreadFromSlave(tid);
+      this.jobThreadFinished(tid, true);
       this.printWithPrompt("MsgProcessFinish processed!");
       
       Message response = new Message(MessageType.MsgResponseSuccess, null, null);
-      if (this.sendProcessMessageResponse(response, socket) == false) {
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
         this.printWithPrompt("sendProcessMessageResponse failed!");
         return ProcessManager.ERROR;
       }
-    } else if (type == MessageType.MsgBalanceRequestSrc) {
+    } else if (type == MessageType.MsgProcessFinishBatch) {
       /*
-       * Slave get this msg from Master, indicating that Slave has high load
-       * Slave should suspend some threads and send back to Master
-       * msg.serializedObj is the count of the threads to migrate from Slave
-       * msg.arg is the count of threads that Master expect Slave is running
-       * msg.arg is used for sync. If msg.arg number not the same as the count of threads Slave really has,
-       * then we send back a response which aborts this round of migration
-       * If msg.arg matches, in response:
-       * msg.serializedObj contains the list of threads, and msg.arg contains list of thread IDs
-       */ 
-      int migrateThreadCnt = (int)msg.getObj();
-      int expectedThreadCnt = (int)msg.getArg();
-      
-      System.out.println("migrateThreadCnt:" + migrateThreadCnt);
-      System.out.println("expectedThreadCnt:" + expectedThreadCnt);
-      
-      Message response = null;
+       * Master get this msg from Slave, notifying that several threads have finished
+       * msg.serializedObj is the list of exit status, msg.arg is the list of thread IDs,
+       * msg.sender is the Slave. A thread Master no longer places on that Slave was
+       * restarted elsewhere after its lease expired, its finish is stale and ignored
+       */
+      LinkedList<Integer> statusList = (LinkedList<Integer>)msg.getObj();
+      LinkedList<Integer> idList = (LinkedList<Integer>)msg.getArg();
+      Iterator<Integer> statuses = statusList.iterator();
+      int stale = 0;
+      for (int tid : idList) {
+        boolean success = statuses.next() == ProcessTask.EXIT_SUCCESS;
+        if (!removeThreadFromSlave(tid, msg.getSender())) {
+          stale++;
+          continue;
+        }
+        if (!success) {
+          this.printWithPrompt("Thread " + tid + " failed!");
+        }
+        this.jobThreadFinished(tid, success);
+      }
+      this.printWithPrompt("MsgProcessFinishBatch processed! " + (idList.size() - stale) + " threads finished"
+          + (stale > 0 ? ", " + stale + " stale ignored" : ""));
+
+      Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
+        this.printWithPrompt("sendProcessMessageResponse failed!");
+        return ProcessManager.ERROR;
+      }
+    } else if (type == MessageType.MsgLoadReport) {
+      /*
+       * Master get this msg from Slave periodically
+       * msg.serializedObj is the LoadReport, re-rank the Slave with it
+       */
+      LoadReport report = (LoadReport)msg.getObj();
+      Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+      if (!this.applyLoadReport(report)) {
+        response = new Message(MessageType.MsgReponseError, null, null);
+      }
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
+        this.printWithPrompt("sendProcessMessageResponse failed!");
+        return ProcessManager.ERROR;
+      }
+    } else if (type == MessageType.MsgMigrateRequest) {
+      /*
+       * Slave get this msg from Master, asking it to move some threads away
+       * msg.serializedObj is the destination Slave, msg.arg is the list of thread IDs
+       * Slave suspends the ones it still runs and streams each straight to the destination
+       * in MsgMigrateChunks, then answers MsgMigrateAck with the thread IDs the destination took
+       */
+      Server dst = (Server)msg.getObj();
+      LinkedList<Integer> requestedList = (LinkedList<Integer>)msg.getArg();
+      System.out.println("Migrate " + requestedList.size() + " threads to " + dst.getIP() + ":" + dst.getPort());
+
+      LinkedList<ProcessTask> candidates = new LinkedList<ProcessTask>();
       this.slaveLock.lock();
       try {
-        if (this.slaveThreadList.size() != expectedThreadCnt) {
-          // Sync problem, msg.arg does not match the real count of threads in Slave
-          response = new Message(MessageType.MsgReponseError, null, null);
-        } else {
-          LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
-          LinkedList<Integer> idList = new LinkedList<Integer>();
-          for (int i = 0; i < migrateThreadCnt; i++) {
-            Thread thread = slaveThreadList.pollLast();
-            if (thread != null) {
-              if (thread.isAlive()) {
-                MigratableProcess mp = this.slaveThreadMPMap.get(thread);
-                mp.suspend();
-                processList.add(mp);
-                idList.add(this.slaveThreadIdMap.get(thread));
-              }
-              this.slaveThreadList.remove(thread);
-              this.slaveThreadIdMap.remove(thread);
-              this.slaveThreadMPMap.remove(thread);
-            }
+        for (int tid : requestedList) {
+          ProcessTask task = this.slaveTaskMap.remove(tid);
+          if (task != null) {
+            candidates.add(task);
           }
-          System.out.println("Src ready to migrate " + processList.size() + " Processes!");
-          if (processList.size() > 0) {
-            response = new Message(MessageType.MsgBalanceResponse, (Object) processList, (Object) idList);
-          } else {
-            response = new Message(MessageType.MsgReponseError, null, null);
+        }
+      } finally {
+        this.slaveLock.unlock();
+      }
+
+      // Suspend outside slaveLock, starts and finishes go on meanwhile
+      // A parked thread was never started again, it leaves at once
+      LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+      LinkedList<Integer> idList = new LinkedList<Integer>();
+      LinkedList<Priority> priorityList = new LinkedList<Priority>();
+      LinkedList<ProcessTask> keepList = new LinkedList<ProcessTask>();
+      LinkedList<ProcessTask> goneList = new LinkedList<ProcessTask>();
+      for (ProcessTask task : candidates) {
+        if (task.isDone()) {
+          // Already finished, its completion is reported by the finish listener
+          continue;
+        }
+        if (task.suspend(SUSPEND_TIMEOUT)) {
+          if (!task.isSuspended()) {
+            // Finished on its own meanwhile, the finish listener reports it
+            continue;
+          }
+          processList.add(task.getProcess());
+          idList.add(task.getTid());
+          priorityList.add(task.getPriority());
+          goneList.add(task);
+        } else {
+          System.out.println("Thread " + task.getTid() + " did not reach a safe point, keep running it!");
+          keepList.add(task);
+        }
+      }
+      LinkedList<ProcessTask> resumeList = new LinkedList<ProcessTask>();
+      this.slaveLock.lock();
+      try {
+        for (ProcessTask task : keepList) {
+          this.slaveTaskMap.put(task.getTid(), task);
+        }
+        for (ProcessTask task : goneList) {
+          ProcessTask next = this.slaveScheduler.leave(task);
+          if (next != null) {
+            resumeList.add(next);
           }
         }
       } finally {
         this.slaveLock.unlock();
       }
-      System.out.println("MsgBalanceRequestSrc processed!");
-      if (this.sendProcessMessageResponse(response, socket) == false) {
+      for (ProcessTask task : resumeList) {
+        this.slaveExecutor.execute(task);
+      }
+
+      Connection dstConnection = this.getConnection(dst);
+      Iterator<Integer> ids = idList.iterator();
+      Iterator<Priority> priorities = priorityList.iterator();
+      for (MigratableProcess process : processList) {
+        int tid = ids.next();
+        Priority priority = priorities.next();
+        long start = System.nanoTime();
+        long bytes = 0;
+        try {
+          bytes = MigrationOutputStream.send(dstConnection, tid, priority, process);
+        } catch (Exception e) {
+          // Destination only holds a complete process until it is committed, resume it here
+          System.out.println("Transfer of thread " + tid + " to " + dst.getIP() + ":" + dst.getPort()
+              + " failed, resume it!");
+          this.startProcess(tid, process, priority);
+          ids.remove();
+          continue;
+        }
+        // Commit is idempotent on the destination, so it is safe to ask again
+        Message commit = null;
+        for (int attempt = 0; attempt < 3 && commit == null; attempt++) {
+          commit = dstConnection.request(new Message(MessageType.MsgMigrateCommit, null, (Object)tid));
+        }
+        if (commit != null && commit.getType() != MessageType.MsgResponseSuccess) {
+          // Destination dropped it before the commit, it never ran there
+          System.out.println("Destination dropped thread " + tid + ", resume it!");
+          this.startProcess(tid, process, priority);
+          ids.remove();
+          continue;
+        }
+        if (commit == null) {
+          // It may run there already, never run it twice, Master places it on the destination
+          System.out.println("Commit of thread " + tid + " to " + dst.getIP() + ":" + dst.getPort()
+              + " unconfirmed, leave it there!");
+        }
+        Metrics.migrated(bytes, start);
+        System.out.println("Migrated thread " + tid + ": " + bytes + " bytes in "
+            + (System.nanoTime() - start) / 1000000 + " ms");
+        this.forgetCheckpoint(tid);
+      }
+      System.out.println("MsgMigrateRequest processed! " + idList.size() + " threads migrated");
+
+      Message response = new Message(MessageType.MsgMigrateAck, null, (Object)idList);
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
         System.out.println("sendProcessMessageResponse failed!");
         return ProcessManager.ERROR;
-      }      
-    } else if (type == MessageType.MsgBalanceRequestDst) {      
+      }
+    } else if (type == MessageType.MsgMigrateChunk) {
       /* 
-       * Slave get this msg from Master
-       * msg.serializedobj is the list of threads, msg.arg is the list of thread IDs
-       * Slave adds these threads, and starts running them
+       * Slave get this msg from another Slave
+       * msg.serializedobj is one MigrationChunk of a migrating thread
+       * Once its last chunk is in, the thread waits for MsgMigrateCommit, with the class the chunk carries
        */
-      LinkedList<MigratableProcess> processList = (LinkedList<MigratableProcess>)msg.getObj();
-      LinkedList<Integer> idList = (LinkedList<Integer>) msg.getArg();
-      System.out.println("Dst ready to run " + processList.size() + " Processes!");
-      while (processList.size() > 0) {
-        MigratableProcess process = processList.pollFirst();
-        int tID = idList.pollFirst();
-        Thread thread = new Thread(process);
-        this.slaveLock.lock();
-        try {
-          this.slaveThreadList.add(thread);
-          this.slaveThreadIdMap.put(thread, tID);
-          this.slaveThreadMPMap.put(thread, process);
-        } finally {
-          this.slaveLock.unlock();
+      MigrationChunk chunk = (MigrationChunk)msg.getObj();
+      Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+      try {
+        MigratableProcess process = this.slaveInbox.add(chunk);
+        if (process != null) {
+          this.slaveInbox.hold(chunk.getTid(), process, chunk.getPriority());
         }
-        thread.start();
-        System.out.println("Start to run Thread " + tID + "!");
+      } catch (Exception e) {
+        e.printStackTrace();
+        response = new Message(MessageType.MsgReponseError, null, null);
       }
-      System.out.println("MsgBalanceRequestDst processed!");
-      
-      Message response = new Message(MessageType.MsgResponseSuccess, null, null);
-      if (this.sendProcessMessageResponse(response, socket) == false) {
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
         System.out.println("sendProcessMessageResponse failed!");
         return ProcessManager.ERROR;
       }      
+    } else if (type == MessageType.MsgMigrateCommit) {
+      /*
+       * Slave get this msg from the source of a migrating thread once all its chunks are in
+       * msg.arg is the thread ID, start it. Error if it was dropped, so the source resumes it
+       */
+      int tid = (int)msg.getArg();
+      Message response = new Message(MessageType.MsgResponseSuccess, null, null);
+      MigrationInbox.Held held = this.slaveInbox.commit(tid);
+      if (held != null) {
+        this.startProcess(tid, held.getProcess(), held.getPriority());
+        System.out.println("Start to run Thread " + tid + "!");
+      } else if (!this.slaveInbox.isCommitted(tid)) {
+        response = new Message(MessageType.MsgReponseError, null, null);
+      }
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
+        System.out.println("sendProcessMessageResponse failed!");
+        return ProcessManager.ERROR;
+      }
     } else if (type == MessageType.MsgTerminate) {
       /* 
        * Slave get this msg from Master, terminating Slave
        */
       this.slaveLock.lock();
       try {
-        for (Thread thread : this.slaveThreadList) {
-          MigratableProcess mp = this.slaveThreadMPMap.get(thread);
-          mp.suspend();
+        for (ProcessTask task : this.slaveTaskMap.values()) {
+          task.suspend(SUSPEND_TIMEOUT);
         }
       } finally {
         this.slaveLock.unlock();
       }
       
       Message response = new Message(MessageType.MsgResponseSuccess, null, null);
-      if (this.sendProcessMessageResponse(response, socket) == false) {
+      if (this.sendProcessMessageResponse(msg, response, session) == false) {
         System.out.println("sendProcessMessageResponse failed!");
         return ProcessManager.ERROR;
       }
+      session.awaitFlushed(Connection.REQUEST_TIMEOUT);
       System.exit(0);
     }
     return ProcessManager.SUCCESS;
   }
   
-  // Send the ProcessMessage response message
-  private boolean sendProcessMessageResponse(Message msg, Socket socket) {
+  /*
+   * Register a process with the Slave and hand it to the executor, unless
+   * PriorityScheduler parks it. A running process of a lower class it
+   * displaces is suspended here, after the new one started.
+   */
+  private void startProcess(int tid, MigratableProcess process, Priority priority) {
+    ProcessTask task = new ProcessTask(tid, process, priority, this.finishListener);
+    String[] inputs = process instanceof FileBackedProcess ? ((FileBackedProcess)process).getInputPaths() : null;
+    ProcessTask victim = null;
+    this.slaveLock.lock();
     try {
-      ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-      out.writeObject(msg);
-      out.flush();
-      out.close();
-    } catch (Exception e) {
-      e.printStackTrace();
-      return false;
+      if (inputs != null) {
+        this.addWarmFiles(inputs);
+      }
+      this.slaveTaskMap.put(tid, task);
+      victim = this.slaveScheduler.admit(task);
+    } finally {
+      this.slaveLock.unlock();
+    }
+    if (victim == task) {
+      return;
+    }
+    this.slaveExecutor.execute(task);
+    if (victim != null) {
+      this.park(victim);
     }
-    return true;
+  }
+
+  // The input files of a process that runs here become warm, the oldest drop out, call with slaveLock held
+  private void addWarmFiles(String[] paths) {
+    for (String path : paths) {
+      if (!this.slaveWarmFiles.remove(path)) {
+        this.slaveLocalityVersion++;
+      }
+      this.slaveWarmFiles.add(path);
+    }
+    Iterator<String> oldest = this.slaveWarmFiles.iterator();
+    while (this.slaveWarmFiles.size() > WARM_FILES) {
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  // Suspend a running process and keep it on this Slave until PriorityScheduler lets it run again
+  private void park(ProcessTask victim) {
+    boolean stopped = victim.suspend(SUSPEND_TIMEOUT);
+    // A victim that finished on its own meanwhile is reported by the finish listener
+    boolean suspended = stopped && victim.isSuspended();
+    ProcessTask resume = null;
+    boolean parked = false;
+    this.slaveLock.lock();
+    try {
+      if (!suspended) {
+        this.slaveScheduler.parkFailed(victim);
+      } else if (this.slaveTaskMap.get(victim.getTid()) == victim) {
+        ProcessTask task = new ProcessTask(victim.getTid(), victim.getProcess(), victim.getPriority(),
+            this.finishListener);
+        this.slaveTaskMap.put(task.getTid(), task);
+        resume = this.slaveScheduler.parked(victim, task);
+        parked = true;
+      }
+      // Otherwise it was migrated away meanwhile
+    } finally {
+      this.slaveLock.unlock();
+    }
+    if (parked) {
+      Metrics.preempted();
+      System.out.println("Parked thread " + victim.getTid() + "!");
+    } else if (!stopped) {
+      System.out.println("Thread " + victim.getTid() + " did not reach a safe point, keep running it!");
+    }
+    if (resume != null) {
+      this.slaveExecutor.execute(resume);
+    }
+  }
+
+  // Completion callback, runs on the thread of the finished process
+  private ProcessTask.Listener finishListener = new ProcessTask.Listener() {
+    public void processFinished(ProcessTask task) {
+      ProcessTask next = null;
+      ProcessManager.this.slaveLock.lock();
+      try {
+        if (ProcessManager.this.slaveTaskMap.get(task.getTid()) == task) {
+          ProcessManager.this.slaveTaskMap.remove(task.getTid());
+        }
+        next = ProcessManager.this.slaveScheduler.leave(task);
+      } finally {
+        ProcessManager.this.slaveLock.unlock();
+      }
+      if (next != null) {
+        ProcessManager.this.slaveExecutor.execute(next);
+      }
+      ProcessManager.this.forgetCheckpoint(task.getTid());
+      ProcessManager.this.slaveFinishQueue.add(task);
+    }
+  };
+
+  // Send the ProcessMessage response message
+  private boolean sendProcessMessageResponse(Message request, Message response, SocketListener.Session session) {
+    response.setRequestId(request.getRequestId());
+    return session.reply(response);
   }
 
   /*
    * General method used to send a message and return the response
    * The server argument refers to the destination, which contains IP and Port
+   * Messages to the same destination share one persistent Connection
    */
   private Message sendMessage(Server server, Message msg) {
-    try {
-      Socket socket = new Socket(server.getIP(), server.getPort());
-      ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-      out.writeObject(msg);
-      out.flush();
-      ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-      Message response = (Message)in.readObject();
-      out.close();
-      in.close();      
-      socket.close();
-      return response;
-    } catch (Exception e) {
-      return null;
+    return this.getConnection(server).request(msg);
+  }
+
+  // Same as sendMessage(server, msg), for requests that may take longer than the default timeout
+  private Message sendMessage(Server server, Message msg, long timeoutMillis) {
+    return this.getConnection(server).request(msg, timeoutMillis);
+  }
+
+  private Connection getConnection(Server server) {
+    String key = server.getIP() + ":" + server.getPort();
+    synchronized (this.connections) {
+      Connection connection = this.connections.get(key);
+      if (connection == null) {
+        connection = new Connection(server.getIP(), server.getPort());
+        this.connections.put(key, connection);
+      }
+      return connection;
+    }
+  }
+
+  // Listening thread, hands every incoming request to processMessage
+  private SocketListener startListener(int port) {
+    SocketListener listener = new SocketListener(port, new MessageHandler() {
+      public void handleMessage(Message msg, SocketListener.Session session) {
+        if (processMessage(msg, session) != ProcessManager.SUCCESS) {
+          System.out.println("Process message failed!");
+        }
+      }
+    });
+    listener.start();
+    Metrics.watch(listener);
+    return listener;
+  }
+
+  // Timer to send load reports from Slave to Master
+  private class LoadReportTimer extends TimerTask {
+    private long lastReport = System.nanoTime();
+    private int reportedLocality = -1; // slaveLocalityVersion Master last took
+
+    public void run() {
+      long now = System.nanoTime();
+      long elapsed = Math.max(1, now - this.lastReport);
+      this.lastReport = now;
+      int locality = ProcessManager.this.getLocalityVersion();
+      LoadReport report = ProcessManager.this.buildLoadReport(elapsed, locality != this.reportedLocality);
+      Message msg = new Message(MessageType.MsgLoadReport, report, null);
+      Message response = sendMessage(ProcessManager.this.master, msg, REPORT_TIMEOUT);
+      if (response == null) {
+        System.out.println("Failed to send load report!");
+      } else if (response.getType() != MessageType.MsgResponseSuccess) {
+        ProcessManager.this.rejoin();
+        this.reportedLocality = -1;
+      } else {
+        // Master renewed the lease no earlier than the report was sent
+        ProcessManager.this.slaveLeaseRenewed.set(now);
+        ProcessManager.this.unfence();
+        this.reportedLocality = locality;
+        ProcessManager.this.requestWork();
+      }
     }
   }
 
-  // Listening thread
-  private class SocketListener extends Thread {    
-    private ServerSocket listener;
+  /*
+   * Timer to stop the threads of a Slave that did not renew its lease for
+   * LEASE_TIMEOUT, before Master restarts them elsewhere. Own thread, the
+   * load report it waits for may hang.
+   */
+  private class LeaseFenceTimer extends TimerTask {
+    public void run() {
+      long silent = System.nanoTime() - ProcessManager.this.slaveLeaseRenewed.get();
+      if (silent >= TimeUnit.MILLISECONDS.toNanos(LEASE_TIMEOUT)) {
+        ProcessManager.this.fence();
+      }
+    }
+  }
 
-    public SocketListener(int port) {      
+  /*
+   * Master may have let the lease expire and restarted the threads of this
+   * Slave from their checkpoints. Suspend them so no thread runs twice, and
+   * keep them until the next load report tells whether Master still has
+   * this Slave. Their checkpoints stay for Master to recover.
+   */
+  private void fence() {
+    synchronized (this.slaveFenceLock) {
+      if (this.slaveFenced != null) {
+        return;
+      }
+      LinkedList<ProcessTask> tasks = null;
+      this.slaveLock.lock();
       try {
-        this.listener = new ServerSocket(port);
-      } catch (Exception e) {
-        e.printStackTrace();
-      }      
+        tasks = new LinkedList<ProcessTask>(this.slaveTaskMap.values());
+        this.slaveTaskMap.clear();
+        this.slaveScheduler.clear();
+      } finally {
+        this.slaveLock.unlock();
+      }
+      System.out.println("Lease not renewed, suspend " + tasks.size() + " threads!");
+      this.slaveFenced = new LinkedList<ProcessTask>();
+      for (ProcessTask task : tasks) {
+        if (!task.suspend(SUSPEND_TIMEOUT)) {
+          System.out.println("Thread " + task.getTid() + " did not reach a safe point, it keeps running!");
+        } else if (task.isSuspended()) {
+          this.slaveFenced.add(task);
+        }
+      }
+    }
+  }
+
+  // Master took a load report, so it still places the fenced threads here, run them again
+  private void unfence() {
+    synchronized (this.slaveFenceLock) {
+      if (this.slaveFenced == null) {
+        return;
+      }
+      System.out.println("Lease renewed, resume " + this.slaveFenced.size() + " threads!");
+      for (ProcessTask task : this.slaveFenced) {
+        this.startProcess(task.getTid(), task.getProcess(), task.getPriority());
+      }
+      this.slaveFenced = null;
+    }
+  }
+
+  /*
+   * Master let the lease of this Slave expire and restarted its threads
+   * elsewhere. Stop them here and register again as an empty Slave.
+   */
+  private void rejoin() {
+    System.out.println("Master dropped this Slave, stop all threads and register again!");
+    synchronized (this.slaveFenceLock) {
+      LinkedList<ProcessTask> tasks = null;
+      this.slaveLock.lock();
+      try {
+        tasks = new LinkedList<ProcessTask>(this.slaveTaskMap.values());
+        this.slaveTaskMap.clear();
+        this.slaveScheduler.clear();
+      } finally {
+        this.slaveLock.unlock();
+      }
+      if (this.slaveFenced != null) {
+        // Already suspended
+        tasks.addAll(this.slaveFenced);
+        this.slaveFenced = null;
+      }
+      for (ProcessTask task : tasks) {
+        if (!task.suspend(SUSPEND_TIMEOUT)) {
+          System.out.println("Thread " + task.getTid() + " did not reach a safe point, it keeps running!");
+        }
+        this.forgetCheckpoint(task.getTid());
+      }
+      this.slaveFinishQueue.clear();
+      this.register();
+    }
+  }
+
+  private boolean register() {
+    long sent = System.nanoTime();
+    Message msg = new Message(MessageType.MsgNewSlaveRequest, this.localhost, null);
+    Message response = sendMessage(this.master, msg, REPORT_TIMEOUT);
+    if (response == null || response.getType() != MessageType.MsgResponseSuccess) {
+      return false;
+    }
+    this.slaveLeaseRenewed.set(sent);
+    return true;
+  }
+
+  /*
+   * Ask Master for work when fewer threads than the low water mark run here,
+   * at most once every STEAL_INTERVAL. The threads come as a migration.
+   */
+  private void requestWork() {
+    int low = STEAL_LOW < 0 ? this.localhost.getCores() : STEAL_LOW;
+    int running = 0;
+    this.slaveLock.lock();
+    try {
+      running = this.slaveTaskMap.size();
+    } finally {
+      this.slaveLock.unlock();
+    }
+    long now = System.currentTimeMillis();
+    long last = this.slaveLastWorkRequest.get();
+    if (running >= low || now - last < STEAL_INTERVAL || !this.slaveLastWorkRequest.compareAndSet(last, now)) {
+      return;
+    }
+    Message msg = new Message(MessageType.MsgWorkRequest, this.localhost, null);
+    if (sendMessage(this.master, msg) == null) {
+      System.out.println("Failed to ask Master for work!");
     }
+  }
+
+  private int getLocalityVersion() {
+    this.slaveLock.lock();
+    try {
+      return this.slaveLocalityVersion;
+    } finally {
+      this.slaveLock.unlock();
+    }
+  }
+
+  /*
+   * CPU load of the machine, heap use of this JVM and the share of a core
+   * every process used over the last elapsed nanoseconds, with the local
+   * and warm paths if withLocality
+   */
+  private LoadReport buildLoadReport(long elapsed, boolean withLocality) {
+    double cpuLoad = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    cpuLoad = Math.min(1.0, Math.max(0.0, cpuLoad / this.localhost.getCores()));
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long heapMax = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+    LoadReport report = new LoadReport(this.localhost, cpuLoad, heap.getUsed(), heapMax);
+
+    LinkedList<ProcessTask> tasks = null;
+    int parked = 0;
+    this.slaveLock.lock();
+    try {
+      tasks = new LinkedList<ProcessTask>(this.slaveTaskMap.values());
+      parked = this.slaveScheduler.getParkedCount();
+      if (withLocality) {
+        report.setLocality(this.slaveLocalPaths, new ArrayList<String>(this.slaveWarmFiles));
+      }
+    } finally {
+      this.slaveLock.unlock();
+    }
+    for (ProcessTask task : tasks) {
+      long cpuTime = task.sampleCpuTime();
+      report.addThread(task.getTid(), cpuTime < 0 ? -1 : Math.min(1.0, (double)cpuTime / elapsed));
+    }
+    report.setCounters(Metrics.slaveCounters(this.slaveFinishQueue.size(), parked));
+    return report;
+  }
 
+  // Update the cost of the reporting Slave, false if it is not one of ours
+  private boolean applyLoadReport(LoadReport report) {
+    Server reported = report.getSlave();
+    this.masterLock.lock();
+    try {
+      Server server = this.masterServerList.getServer(reported.getIP(), reported.getPort());
+      if (server == null) {
+        return false;
+      }
+      server.leaseEnd = System.currentTimeMillis() + LEASE_TIMEOUT;
+      server.setCores(reported.getCores());
+      double heapUsage = report.getHeapMax() > 0 ? (double)report.getHeapUsed() / report.getHeapMax() : 0;
+      server.setUsage(report.getCpuLoad(), heapUsage);
+      server.counters = report.getCounters();
+      if (report.getLocalPaths() != null) {
+        server.setLocality(report.getLocalPaths(), report.getWarmPaths());
+      }
+      Iterator<Double> loads = report.getThreadLoads().iterator();
+      for (int tid : report.getIdList()) {
+        double load = loads.next();
+        if (load >= 0) {
+          server.setThreadLoad(tid, load);
+        }
+      }
+      this.masterServerList.update(server);
+    } finally {
+      this.masterLock.unlock();
+    }
+    return true;
+  }
+
+  // Timer to checkpoint the processes of a Slave
+  private class CheckpointTimer extends TimerTask {
     public void run() {
-      while (true) {
-        try {
-          /* 
-           * Listen until a connection is established, and process the message
-           */
-        	Socket socket = this.listener.accept();
-        	ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-          Message msg = (Message)in.readObject();
-        	if(processMessage(msg, socket) != ProcessManager.SUCCESS) {
-        		System.out.println("Process message failed!");
-        	}
-        	in.close();
-        	socket.close();
-        } catch (Exception e) {
-          e.printStackTrace();
+      ProcessManager.this.checkpoint();
+    }
+  }
+
+  /*
+   * Snapshot every running process at a safe point and append the ones
+   * whose state changed since their last checkpoint
+   */
+  private void checkpoint() {
+    LinkedList<ProcessTask> tasks = null;
+    this.slaveLock.lock();
+    try {
+      tasks = new LinkedList<ProcessTask>(this.slaveTaskMap.values());
+    } finally {
+      this.slaveLock.unlock();
+    }
+    int written = 0;
+    try {
+      for (ProcessTask task : tasks) {
+        byte[] state = task.checkpoint(SUSPEND_TIMEOUT);
+        if (state != null && this.slaveCheckpoints.write(task.getTid(), state)) {
+          written++;
         }
       }
+      this.slaveCheckpoints.sync();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    if (written > 0) {
+      System.out.println("Checkpointed " + written + " of " + tasks.size() + " threads");
+    }
+  }
+
+  private void forgetCheckpoint(int tid) {
+    if (this.slaveCheckpoints == null) {
+      return;
+    }
+    try {
+      this.slaveCheckpoints.remove(tid);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Timer to drop Slaves whose lease expired, Master only
+  private class LeaseMonitor extends TimerTask {
+    public void run() {
+      LinkedList<Server> expired = new LinkedList<Server>();
+      long now = System.currentTimeMillis();
+      ProcessManager.this.masterLock.lock();
+      try {
+        for (Server server : ProcessManager.this.masterServerList) {
+          if (server.leaseEnd < now) {
+            expired.add(server);
+          }
+        }
+      } finally {
+        ProcessManager.this.masterLock.unlock();
+      }
+      for (Server server : expired) {
+        ProcessManager.this.printWithPrompt("Lease of Slave " + server.getIP() + ":" + server.getPort() + " expired!");
+        ProcessManager.this.recover(server);
+      }
+    }
+  }
+
+  // recover command of the REPL, address is IP:Port
+  private void recover(String address) {
+    String[] addr = address.split(":");
+    Server dead = null;
+    this.masterLock.lock();
+    try {
+      dead = this.masterServerList.getServer(addr[0], Integer.parseInt(addr[1]));
+    } finally {
+      this.masterLock.unlock();
+    }
+    if (dead == null) {
+      System.out.println("Unknown Slave " + address + "!");
+      return;
+    }
+    this.recover(dead);
+  }
+
+  /*
+   * Drop a dead Slave from the list and restart its threads from its
+   * checkpoint file on the other Slaves
+   */
+  private void recover(Server dead) {
+    LinkedList<Integer> lostList = null;
+    this.masterLock.lock();
+    try {
+      if (this.masterServerList.getServer(dead.getIP(), dead.getPort()) != dead) {
+        // Already dropped
+        return;
+      }
+      lostList = new LinkedList<Integer>(dead.getThreadSet());
+      this.masterServerList.remove(dead);
+    } finally {
+      this.masterLock.unlock();
+    }
+    String address = dead.getIP() + ":" + dead.getPort();
+    Connection connection = null;
+    synchronized (this.connections) {
+      connection = this.connections.remove(address);
+    }
+    if (connection != null) {
+      connection.close();
+    }
+
+    Map<Integer, byte[]> states = null;
+    File file = CheckpointStore.fileOf(dead.getIP(), dead.getPort());
+    if (!lostList.isEmpty() && !file.exists()) {
+      // Slaves write it under their own pm.checkpoint.dir, Master only sees it on a shared one
+      this.printWithPrompt("Warning: no checkpoint file " + file.getAbsolutePath() + " for " + address
+          + ", is pm.checkpoint.dir shared with the Slaves?");
+    }
+    try {
+      states = CheckpointStore.load(file);
+    } catch (Exception e) {
+      e.printStackTrace();
+      states = new HashMap<Integer, byte[]>();
+    }
+    LinkedList<Integer> idList = new LinkedList<Integer>();
+    LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+    LinkedList<Priority> priorityList = new LinkedList<Priority>();
+    for (int tid : lostList) {
+      byte[] state = states.get(tid);
+      if (state == null) {
+        this.printWithPrompt("Thread " + tid + " has no checkpoint, lost!");
+        this.jobThreadFinished(tid, false);
+        continue;
+      }
+      try {
+        processList.add(MessageCodec.deserializeProcess(state));
+        idList.add(tid);
+        priorityList.add(dead.getPriority(tid));
+      } catch (Exception e) {
+        e.printStackTrace();
+        this.printWithPrompt("Thread " + tid + " has a broken checkpoint, lost!");
+        this.jobThreadFinished(tid, false);
+      }
     }
+    int recovered = this.startProcesses(idList, processList, priorityList);
+    this.printWithPrompt("Recovered " + recovered + " of " + lostList.size() + " threads from " + address);
   }
 
   // Timer to trigger load balance
@@ -302,65 +990,101 @@ public class ProcessManager {
     }    
   }
 
-  private void loadBalance() {    
-    int round = 0;
-    
-    // The round of load balance we do is 1/2 * NumberOfSlaves
+  /*
+   * Plan every move of this pass at once, then migrate from all sources in
+   * parallel.
+   */
+  private void loadBalance() {
+    List<MigrationPlanner.Move> moves = null;
     this.masterLock.lock();
     try {
-      round = masterServerList.size() / 2;
+      moves = MigrationPlanner.plan(this.masterServerList);
     } finally {
       this.masterLock.unlock();
     }
+    if (moves.isEmpty()) {
+      return;
+    }
 
-    // Each round we balance load between server with the max and min load
-    while (round > 0) {
-      Server dst = null;
-      Server src = null;
-      int min = 0;
-      int max = 0;
-      int diff = 0;
-      this.masterLock.lock();
+    LinkedList<Future<?>> transfers = new LinkedList<Future<?>>();
+    for (final MigrationPlanner.Move move : moves) {
+      transfers.add(this.balanceExecutor.submit(new Runnable() {
+        public void run() {
+          ProcessManager.this.migrate(move);
+        }
+      }));
+    }
+    for (Future<?> transfer : transfers) {
       try {
-        dst = this.masterServerList.peekFirst();
-        src = this.masterServerList.peekLast();
-        min = dst.getThreadSet().size();
-        max = src.getThreadSet().size();
-        diff = (max - min) / 2;
-      } finally {
-        this.masterLock.unlock();
+        transfer.get();
+      } catch (Exception e) {
+        e.printStackTrace();
       }
+    }
+  }
 
-      if (diff < 1)
-        break;
-
-      Message requestSrc = new Message(MessageType.MsgBalanceRequestSrc, (Object)diff, (Object)max);
-      Message responseSrc = sendMessage(src, requestSrc);
-      if (responseSrc.getType() != MessageType.MsgBalanceResponse) {
-        this.printWithPrompt("Load balance skip this round!");
-        continue;
+  /*
+   * Carry out one source's part of a load balance plan. Master only names
+   * the threads, lowest class first and keeping threads by their input
+   * files, see ServerLoadIndex.getThreadsToMove. The source ships them to
+   * each destination itself, and the bookkeeping moves the threads the
+   * source acknowledges.
+   */
+  @SuppressWarnings("unchecked")
+  private void migrate(MigrationPlanner.Move move) {
+    Server src = move.getSrc();
+    LinkedHashMap<Server, LinkedList<Integer>> plan = new LinkedHashMap<Server, LinkedList<Integer>>();
+    this.masterLock.lock();
+    try {
+      if (!this.masterBusy.add(src)) {
+        // A steal or the last plan still moves threads off it
+        return;
       }
+      HashSet<Integer> taken = new HashSet<Integer>();
+      for (Map.Entry<Server, Integer> entry : move.getDstCounts().entrySet()) {
+        plan.put(entry.getKey(), new LinkedList<Integer>(this.masterServerList.getThreadsToMove(src, entry.getKey(),
+            entry.getValue(), taken)));
+      }
+    } finally {
+      this.masterLock.unlock();
+    }
 
-      @SuppressWarnings("unchecked")
-      LinkedList<Integer> tidList = (LinkedList<Integer>)responseSrc.getArg();
-      migrateThreadSet(src, dst, tidList);
-      Message requestDst = new Message(MessageType.MsgBalanceRequestDst, responseSrc.getObj(), responseSrc.getArg());
-
-      if(sendMessage(dst, requestDst) == null) {
-        this.printWithPrompt("Load balance error!");
+    try {
+      for (Map.Entry<Server, LinkedList<Integer>> entry : plan.entrySet()) {
+        Server dst = entry.getKey();
+        if (entry.getValue().isEmpty()) {
+          // Nothing left, or every thread left would lose its locality
+          continue;
+        }
+        Message request = new Message(MessageType.MsgMigrateRequest, (Object)dst, (Object)entry.getValue());
+        Message response = sendMessage(src, request, MIGRATE_TIMEOUT);
+        if (response == null || response.getType() != MessageType.MsgMigrateAck) {
+          this.printWithPrompt("Load balance skip " + src.getIP() + ":" + src.getPort() + "!");
+          return;
+        }
+        migrateThreadSet(src, dst, (LinkedList<Integer>)response.getArg());
+      }
+    } finally {
+      this.masterLock.lock();
+      try {
+        this.masterBusy.remove(src);
+      } finally {
+        this.masterLock.unlock();
       }
-      
-      round--;
     }
   }
 
   private void MasterRun() {
-    SocketListener listener = new SocketListener(MASTER_PORT);
-    listener.start();
+    ClassCache.setStore(new File(CLASS_DIR));
+    this.startListener(MASTER_PORT);
+    Metrics.registerMBean();
 
     System.out.println("This is Master!");
     Timer timer = new Timer();
     timer.schedule(new LoadBalanceTimer(), 10000, 10000);
+    // Own thread, so a long load balance pass does not delay lease expiry
+    Timer leaseTimer = new Timer(true);
+    leaseTimer.schedule(new LeaseMonitor(), 1000, 1000);
 
     BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
     while (true) {
@@ -377,34 +1101,34 @@ public class ProcessManager {
         else if (input.equals("ps")) {
           this.debug();
         }
+        else if (input.equals("stats")) {
+          this.stats();
+          continue;
+        }
         else if (input.equals("quit")) {
           this.quit();
         }
-        
-        String[] inputStrings = input.split(" ", 2);
-        String[] threadArgs = null;
-        if(inputStrings.length > 1) {
-          // Thread has arguments
-          threadArgs = inputStrings[1].split(" ");
+        else if (input.startsWith("recover ")) {
+          this.recover(input.substring("recover ".length()).trim());
+          continue;
         }
-        
-        @SuppressWarnings("unchecked")
-        Class<MigratableProcess> processClass = (Class<MigratableProcess>)(Class.forName(inputStrings[0]));
-        Constructor<?>[] processConstructor = processClass.getConstructors();
-        if(inputStrings.length == 1) {
-          // Thread has no argument
-          process = (MigratableProcess)processConstructor[0].newInstance();
-        } else {
-          // Thread has arguments
-          process = (MigratableProcess)processConstructor[0].newInstance(new Object[]{threadArgs});
+        else if (input.startsWith("submit ")) {
+          this.submit(input.substring("submit ".length()).trim());
+          continue;
+        }
+        else if (input.startsWith("grep ")) {
+          this.grep(input.substring("grep ".length()).trim());
+          continue;
         }
+        
+        process = createProcesses(input, 1).getFirst();
       } catch (Exception e) {
         System.out.println("Invalid input!");
         continue;
       }
       
       this.threadId++;
-      Server server = addThreadToSlave(this.threadId);
+      Server server = addThreadToSlave(this.threadId, process);
       if (server == null) {
         System.out.println("No Slave found!");
         this.threadId--;
@@ -413,49 +1137,391 @@ public class ProcessManager {
       Message msg = new Message(MessageType.MsgProcessStart, (Object)process, (Object)this.threadId);
       if(sendMessage(server, msg) == null) {
         System.out.println("Failed to Send MsgProcessStart Message!");
+        removeThreadFromSlave(this.threadId);
+        this.jobThreadFinished(this.threadId, false);
       }
     }
   }
 
+  /*
+   * submit [-p class] -n N ClassName [args...]  starts N instances of the class
+   * submit -f jobfile  starts every line of the file, each "[-p class] [-n N] ClassName [args...]",
+   *                    blank lines and lines starting with # are skipped
+   * class is high, normal (the default) or batch, see Priority
+   * All of them are placed at once and started with one batch per Slave
+   */
+  private void submit(String spec) throws Exception {
+    LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+    LinkedList<Priority> priorityList = new LinkedList<Priority>();
+    if (spec.startsWith("-f ")) {
+      BufferedReader reader = new BufferedReader(new FileReader(spec.substring("-f ".length()).trim()));
+      try {
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (!line.equals("") && !line.startsWith("#")) {
+            processList.addAll(parseSubmit(line, priorityList));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } else {
+      processList.addAll(parseSubmit(spec, priorityList));
+    }
+
+    LinkedList<Integer> idList = new LinkedList<Integer>();
+    for (int i = 0; i < processList.size(); i++) {
+      idList.add(++this.threadId);
+    }
+    long start = System.nanoTime();
+    int started = this.startProcesses(idList, processList, priorityList);
+    System.out.println("Started " + started + " of " + processList.size() + " threads in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
+  /*
+   * grep [-n N] [-p class] [GrepThread options] queryString inputFile outputFile
+   * Cuts the input into N line aligned byte ranges, one per Slave core by
+   * default, and greps each in its own GrepThread into outputFile.partK.
+   * When all of them finished, a ConcatThread merges the parts in order.
+   * Every thread of the job runs as class.
+   */
+  private void grep(String spec) throws Exception {
+    String[] args = spec.split(" +");
+    int parts = 0;
+    Priority priority = Priority.NORMAL;
+    int first = 0;
+    LinkedList<String> options = new LinkedList<String>(); // Passed on to every GrepThread
+    while (args.length - first > 3) {
+      if (args[first].equals("-n")) {
+        parts = Integer.parseInt(args[++first]);
+      } else if (args[first].equals("-p")) {
+        priority = Priority.parse(args[++first]);
+      } else if (args[first].equals("-t")) {
+        options.add(args[first++]);
+        options.add(args[first]);
+      } else {
+        options.add(args[first]);
+      }
+      first++;
+    }
+    if (args.length - first != 3) {
+      throw new Exception("usage: grep [-n <ranges>] [-p <class>] [-m | -r] [-t <ms>] <queryString> <inputFile>"
+          + " <outputFile>");
+    }
+    String query = args[first];
+    String input = args[first + 1];
+    String output = args[first + 2];
+    if (parts <= 0) {
+      this.masterLock.lock();
+      try {
+        for (Server server : this.masterServerList) {
+          parts += server.getCores();
+        }
+      } finally {
+        this.masterLock.unlock();
+      }
+      parts = Math.max(1, parts);
+    }
+
+    long[] bounds = TransactionalFileInputStream.splitLines(input, parts);
+    String[] partFiles = new String[parts];
+    LinkedList<Integer> idList = new LinkedList<Integer>();
+    LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+    LinkedList<Priority> priorityList = new LinkedList<Priority>();
+    for (int i = 0; i < parts; i++) {
+      partFiles[i] = output + ".part" + i;
+      // The streams write over a file without truncating it
+      new File(partFiles[i]).delete();
+      LinkedList<String> grepArgs = new LinkedList<String>(options);
+      grepArgs.addAll(Arrays.asList(query, input, partFiles[i], Long.toString(bounds[i]),
+          Long.toString(bounds[i + 1])));
+      processList.add(new GrepThread(grepArgs.toArray(new String[grepArgs.size()])));
+      idList.add(++this.threadId);
+      priorityList.add(priority);
+    }
+    new File(output).delete();
+    GrepJob job = new GrepJob(output, partFiles, idList, ++this.threadId, priority);
+    // Known before any range thread can finish
+    synchronized (this.masterJobs) {
+      for (int tid : idList) {
+        this.masterJobs.put(tid, job);
+      }
+      this.masterJobs.put(job.getConcatId(), job);
+    }
+    int started = this.startProcesses(idList, processList, priorityList);
+    if (started < parts) {
+      job.fail();
+      synchronized (this.masterJobs) {
+        for (int tid : idList) {
+          this.masterJobs.remove(tid);
+        }
+        this.masterJobs.remove(job.getConcatId());
+      }
+      System.out.println("Grep started only " + started + " of " + parts + " ranges, " + output + " is not merged!");
+      return;
+    }
+    System.out.println("Grep of " + input + " split into " + parts + " ranges");
+  }
+
+  // A thread finished on a Slave, merge its grep job's parts if it was the last range
+  private void jobThreadFinished(int tid, boolean success) {
+    GrepJob job = null;
+    synchronized (this.masterJobs) {
+      job = this.masterJobs.remove(tid);
+    }
+    if (job == null) {
+      return;
+    }
+    if (tid == job.getConcatId()) {
+      this.printWithPrompt(success ? "Grep done, output in " + job.getOutput() : "Merging " + job.getOutput()
+          + " failed!");
+      return;
+    }
+    if (!success) {
+      this.printWithPrompt("Grep range thread " + tid + " failed, " + job.getOutput() + " is not merged!");
+    }
+    if (!job.rangeFinished(tid, success)) {
+      return;
+    }
+    LinkedList<Integer> idList = new LinkedList<Integer>();
+    LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+    LinkedList<Priority> priorityList = new LinkedList<Priority>();
+    try {
+      processList.add(new ConcatThread(job.getConcatArgs()));
+      idList.add(job.getConcatId());
+      priorityList.add(job.getPriority());
+    } catch (Exception e) {
+      e.printStackTrace();
+      synchronized (this.masterJobs) {
+        this.masterJobs.remove(job.getConcatId());
+      }
+      this.printWithPrompt("Failed to start merging " + job.getOutput() + "!");
+      return;
+    }
+    // A ConcatThread that does not start ends the job through jobThreadFinished like one that fails
+    this.startProcesses(idList, processList, priorityList);
+  }
+
+  // "[-p class] [-n N] ClassName [args...]" to N new processes, their class is appended to priorityList
+  private static LinkedList<MigratableProcess> parseSubmit(String spec, LinkedList<Priority> priorityList)
+      throws Exception {
+    int count = 1;
+    Priority priority = Priority.NORMAL;
+    while (spec.startsWith("-n ") || spec.startsWith("-p ")) {
+      String[] parts = spec.split(" +", 3);
+      if (parts[0].equals("-n")) {
+        count = Integer.parseInt(parts[1]);
+      } else {
+        priority = Priority.parse(parts[1]);
+      }
+      spec = parts.length > 2 ? parts[2] : "";
+    }
+    LinkedList<MigratableProcess> processList = createProcesses(spec, count);
+    for (int i = 0; i < count; i++) {
+      priorityList.add(priority);
+    }
+    return processList;
+  }
+
+  // count new processes from "ClassName [args...]", each with its own copy of the arguments
+  private static LinkedList<MigratableProcess> createProcesses(String input, int count) throws Exception {
+    String[] inputStrings = input.split(" ", 2);
+    String[] threadArgs = null;
+    if(inputStrings.length > 1) {
+      // Thread has arguments
+      threadArgs = inputStrings[1].split(" ");
+    }
+    
+    @SuppressWarnings("unchecked")
+    Class<MigratableProcess> processClass = (Class<MigratableProcess>)(Class.forName(inputStrings[0]));
+    ClassCache.register(processClass);
+    Constructor<?>[] processConstructor = processClass.getConstructors();
+    LinkedList<MigratableProcess> processList = new LinkedList<MigratableProcess>();
+    for (int i = 0; i < count; i++) {
+      if(inputStrings.length == 1) {
+        // Thread has no argument
+        processList.add((MigratableProcess)processConstructor[0].newInstance());
+      } else {
+        // Thread has arguments
+        processList.add((MigratableProcess)processConstructor[0].newInstance(new Object[]{threadArgs.clone()}));
+      }
+    }
+    return processList;
+  }
+
+  /*
+   * Place the processes in one pass under masterLock, each by the cost its
+   * class sees and the locality of its input files, then start them with MsgProcessStartBatches of up to
+   * SUBMIT_BATCH processes of one class. Every batch is sent before any
+   * answer is awaited. Returns how many threads started.
+   */
+  private int startProcesses(LinkedList<Integer> idList, LinkedList<MigratableProcess> processList,
+      LinkedList<Priority> priorityList) {
+    LinkedHashMap<Server, LinkedList<Integer>> placedIds = new LinkedHashMap<Server, LinkedList<Integer>>();
+    LinkedHashMap<Server, LinkedList<MigratableProcess>> placedProcesses =
+        new LinkedHashMap<Server, LinkedList<MigratableProcess>>();
+    LinkedHashMap<Server, ArrayList<Priority>> placedPriorities = new LinkedHashMap<Server, ArrayList<Priority>>();
+    // Outside the lock, the sizes come from the file system
+    ArrayList<DataLocality> inputList = new ArrayList<DataLocality>(processList.size());
+    for (MigratableProcess process : processList) {
+      inputList.add(DataLocality.of(process));
+    }
+    LinkedList<Integer> unplaced = new LinkedList<Integer>(idList);
+    this.masterLock.lock();
+    try {
+      Iterator<MigratableProcess> processes = processList.iterator();
+      Iterator<Priority> priorities = priorityList.iterator();
+      Iterator<DataLocality> inputs = inputList.iterator();
+      for (int tid : idList) {
+        Priority priority = priorities.next();
+        DataLocality input = inputs.next();
+        Server server = this.masterServerList.peekFirst(priority, input);
+        if (server == null) {
+          break;
+        }
+        unplaced.removeFirst();
+        this.masterServerList.addThread(server, tid, priority, input);
+        if (!placedIds.containsKey(server)) {
+          placedIds.put(server, new LinkedList<Integer>());
+          placedProcesses.put(server, new LinkedList<MigratableProcess>());
+          placedPriorities.put(server, new ArrayList<Priority>());
+        }
+        placedIds.get(server).add(tid);
+        placedProcesses.get(server).add(processes.next());
+        placedPriorities.get(server).add(priority);
+      }
+    } finally {
+      this.masterLock.unlock();
+    }
+    // No Slave left to run them
+    for (int tid : unplaced) {
+      this.jobThreadFinished(tid, false);
+    }
+    if (placedIds.isEmpty() && !idList.isEmpty()) {
+      this.printWithPrompt("No Slave found!");
+      return 0;
+    }
+
+    LinkedList<LinkedList<Integer>> batches = new LinkedList<LinkedList<Integer>>();
+    LinkedList<Connection.PendingReply> replies = new LinkedList<Connection.PendingReply>();
+    for (Map.Entry<Server, LinkedList<Integer>> entry : placedIds.entrySet()) {
+      Connection connection = this.getConnection(entry.getKey());
+      Iterator<MigratableProcess> processes = placedProcesses.get(entry.getKey()).iterator();
+      ArrayList<Priority> serverPriorities = placedPriorities.get(entry.getKey());
+      LinkedList<Integer> batch = new LinkedList<Integer>();
+      LinkedList<MigratableProcess> batchProcesses = new LinkedList<MigratableProcess>();
+      int index = 0;
+      for (int tid : entry.getValue()) {
+        Priority priority = serverPriorities.get(index++);
+        batch.add(tid);
+        batchProcesses.add(processes.next());
+        if (batch.size() == SUBMIT_BATCH || !processes.hasNext() || serverPriorities.get(index) != priority) {
+          batches.add(batch);
+          Message msg = new Message(MessageType.MsgProcessStartBatch, (Object)batchProcesses, (Object)batch);
+          msg.setPriority(priority);
+          replies.add(connection.send(msg));
+          batch = new LinkedList<Integer>();
+          batchProcesses = new LinkedList<MigratableProcess>();
+        }
+      }
+    }
+
+    int started = 0;
+    Iterator<LinkedList<Integer>> sent = batches.iterator();
+    for (Connection.PendingReply reply : replies) {
+      LinkedList<Integer> batch = sent.next();
+      Message response = reply.await(Connection.REQUEST_TIMEOUT);
+      if (response == null || response.getType() != MessageType.MsgResponseSuccess) {
+        this.printWithPrompt("Failed to Send MsgProcessStartBatch Message!");
+        for (int tid : batch) {
+          removeThreadFromSlave(tid);
+          this.jobThreadFinished(tid, false);
+        }
+        continue;
+      }
+      started += batch.size();
+    }
+    return started;
+  }
+
   private void SlaveRun() {
-    SocketListener listener = new SocketListener(this.localhost.getPort());
-    listener.start();
+    if (CHECKPOINT_INTERVAL > 0) {
+      try {
+        this.slaveCheckpoints = new CheckpointStore(this.localhost);
+      } catch (Exception e) {
+        e.printStackTrace();
+        System.out.println("Checkpointing is off!");
+      }
+    }
+    // Classes that are not on this Slave's classpath come from Master
+    ClassCache.setSource(new ClassCache.Source() {
+      public ClassFile fetch(String name, String hash) throws IOException {
+        Message msg = new Message(MessageType.MsgClassRequest, new ClassFile(name, hash, null), null);
+        Message response = sendMessage(ProcessManager.this.master, msg);
+        if (response == null || response.getType() != MessageType.MsgClassFile) {
+          throw new IOException("Master has no class file for " + name + " " + hash);
+        }
+        return (ClassFile)response.getObj();
+      }
+    });
+    this.startListener(this.localhost.getPort());
+    Metrics.registerMBean();
 
-    Message msg = new Message(MessageType.MsgNewSlaveRequest, this.localhost, null);
-    if (sendMessage(this.master, msg).getType() == MessageType.MsgResponseSuccess) {
+    if (this.register()) {
       System.out.println("Connected to Master!");
     } else {
       System.out.println("Failed to connect to Master!");
       return;
     }
     System.out.println("This is Slave!");
+    this.requestWork();
+    Timer timer = new Timer(true);
+    timer.schedule(new LoadReportTimer(), REPORT_INTERVAL, REPORT_INTERVAL);
+    Timer fenceTimer = new Timer(true);
+    long fenceCheck = Math.max(1, LEASE_TIMEOUT / 15);
+    fenceTimer.schedule(new LeaseFenceTimer(), fenceCheck, fenceCheck);
+    if (this.slaveCheckpoints != null) {
+      // Own thread, so waiting for safe points does not delay the load reports Master's lease relies on
+      Timer checkpointTimer = new Timer(true);
+      checkpointTimer.schedule(new CheckpointTimer(), CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL);
+    }
     
+    /*
+     * Report finished threads to Master. Finishes that arrive together are
+     * sent as one MsgProcessFinishBatch, outside slaveLock
+     */
     while (true) {
+      LinkedList<ProcessTask> finished = new LinkedList<ProcessTask>();
       try {
-        Thread.sleep(30);
-      } catch (Exception e) {
-        e.printStackTrace();
+        finished.add(this.slaveFinishQueue.take());
+        Thread.sleep(FINISH_LINGER);
+      } catch (InterruptedException e) {
         continue;
       }
-      LinkedList<Thread> removeList = new LinkedList<Thread>();
-      this.slaveLock.lock();
-      try {
-        for (Thread thread : this.slaveThreadList) {
-          if (!thread.isAlive()) {
-            removeList.add(thread);
-          }
-        }
-        for (Thread thread : removeList) {
-          int tid = this.slaveThreadIdMap.get(thread);
-          this.slaveThreadList.remove(thread);
-          this.slaveThreadIdMap.remove(thread);
-          this.slaveThreadMPMap.remove(thread);
-          Message finMsg = new Message(MessageType.MsgProcessFinish, null, (Object) tid);
-          sendMessage(this.master, finMsg);
+      this.slaveFinishQueue.drainTo(finished);
+
+      LinkedList<Integer> statusList = new LinkedList<Integer>();
+      LinkedList<Integer> idList = new LinkedList<Integer>();
+      for (ProcessTask task : finished) {
+        statusList.add(task.getExitStatus());
+        idList.add(task.getTid());
+      }
+      Message finMsg = new Message(MessageType.MsgProcessFinishBatch, (Object) statusList, (Object) idList);
+      finMsg.setSender(this.localhost);
+      if (sendMessage(this.master, finMsg) == null) {
+        // Master unreachable, keep them for the next batch
+        System.out.println("Failed to report " + idList.size() + " finished threads!");
+        this.slaveFinishQueue.addAll(finished);
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          // Ignore it
         }
-      } finally {
-        this.slaveLock.unlock();
+        continue;
       }
+      this.requestWork();
     }
   }
 
@@ -463,13 +1529,15 @@ public class ProcessManager {
   private void debug() {
     this.masterLock.lock();
     try {
-      System.out.println("SlaveIP\t\tSlavePort\tThreadCount");
+      System.out.println("SlaveIP\t\tSlavePort\tThreadCount\tCores\tCost");
       System.out.println("-------------------------------------------");
       for (Server server : masterServerList) {
-        System.out.println(server.getIP() + "\t" + server.getPort() + "\t\t" + server.getThreadSet().size());
+        System.out.println(server.getIP() + "\t" + server.getPort() + "\t\t" + server.getThreadSet().size()
+            + "\t\t" + server.getCores() + "\t" + String.format("%.2f", server.getCost()));
         System.out.print("ThreadID: ");
         for (int i : server.getThreadSet()) {
-          System.out.print(i + " ");
+          Priority priority = server.getPriority(i);
+          System.out.print(i + (priority == Priority.NORMAL ? " " : "(" + priority.name().toLowerCase() + ") "));
         }
         System.out.println("\n-------------------------------------------");
       }
@@ -478,54 +1546,87 @@ public class ProcessManager {
     }
   }
   
+  // Show the Master's metrics and the counters every Slave sent with its last load report
+  private void stats() {
+    System.out.print(Metrics.report());
+    System.out.print("Slave\t\t");
+    for (String name : Metrics.SLAVE_COUNTERS) {
+      System.out.print("\t" + name);
+    }
+    System.out.println();
+    this.masterLock.lock();
+    try {
+      for (Server server : this.masterServerList) {
+        System.out.print(server.getIP() + ":" + server.getPort() + "\t");
+        if (server.counters != null) {
+          for (long counter : server.counters) {
+            System.out.print("\t" + counter);
+          }
+        }
+        System.out.println();
+      }
+    } finally {
+      this.masterLock.unlock();
+    }
+  }
+
   // Quit ProcessManager
   private void quit() {
+    LinkedList<Server> slaves = new LinkedList<Server>();
     this.masterLock.lock();
     try {
       for (Server server : this.masterServerList) {
-        Message msg = new Message(MessageType.MsgTerminate, null, null);
-        if (sendMessage(server, msg).getType() != MessageType.MsgResponseSuccess) {
-          System.out.println("Terminate error!");
-        }
+        slaves.add(server);
       }
     } finally {
       this.masterLock.unlock();
     }
+    // Not under masterLock, a hung Slave only costs its timeout
+    for (Server server : slaves) {
+      Message msg = new Message(MessageType.MsgTerminate, null, null);
+      Message response = sendMessage(server, msg);
+      if (response == null || response.getType() != MessageType.MsgResponseSuccess) {
+        System.out.println("Terminate error!");
+      }
+    }
     System.exit(0);
   }
 
   private void removeThreadFromSlave(int tid) {
-    Server targetSlave = null;
     this.masterLock.lock();
     try {
-      for (Server slave : this.masterServerList) {
-        if (slave.getThreadSet().contains(tid)) {
-          targetSlave = slave;
-          break;
-        }
-      }
-      if (targetSlave != null) {
-        // Remove slave Server and add it back to keep MinMaxPriorityQueue working
-        this.masterServerList.remove(targetSlave);
-        targetSlave.getThreadSet().remove(tid);
-        this.masterServerList.offer(targetSlave);
+      this.masterServerList.removeThread(tid);
+    } finally {
+      this.masterLock.unlock();
+    }
+  }
+
+  // Same as removeThreadFromSlave(tid), only if Master places tid on slave, false otherwise
+  private boolean removeThreadFromSlave(int tid, Server slave) {
+    this.masterLock.lock();
+    try {
+      Server owner = this.masterServerList.getServer(tid);
+      if (owner == null || owner != this.masterServerList.getServer(slave.getIP(), slave.getPort())) {
+        return false;
       }
+      this.masterServerList.removeThread(tid);
+      return true;
     } finally {
       this.masterLock.unlock();
     }
   }
 
-  private Server addThreadToSlave(int tid) {
+  // Place a new NORMAL thread on the least loaded Slave, or one holding its input files
+  private Server addThreadToSlave(int tid, MigratableProcess process) {
     Server server = null;
+    DataLocality inputs = DataLocality.of(process);
     this.masterLock.lock();
     try {
-      // Remove slave Server and add it back to keep MinMaxPriorityQueue working
-      server = this.masterServerList.pollLast();
+      server = this.masterServerList.peekFirst(Priority.NORMAL, inputs);
       if(server == null) {
         return null;
       }
-      server.getThreadSet().add(tid);
-      this.masterServerList.offer(server);
+      this.masterServerList.addThread(server, tid, Priority.NORMAL, inputs);
     } finally {
       this.masterLock.unlock();
     }
@@ -537,13 +1638,7 @@ public class ProcessManager {
     if (src != null && dst != null) {
       this.masterLock.lock();
       try {
-        // Remove slave Server and add it back to keep MinMaxPriorityQueue working
-        this.masterServerList.remove(src);
-        this.masterServerList.remove(dst);
-        src.getThreadSet().removeAll(tidList);
-        dst.getThreadSet().addAll(tidList);
-        this.masterServerList.offer(src);
-        this.masterServerList.offer(dst);
+        this.masterServerList.moveThreads(src, dst, tidList);
       } finally {
         this.masterLock.unlock();
       }
@@ -593,6 +1688,7 @@ public class ProcessManager {
         String slave_host = null;
         slave_host = InetAddress.getLocalHost().getHostAddress();
         Server slave = new Server(slave_host, slave_port);
+        slave.setCores(Runtime.getRuntime().availableProcessors());
         ProcessManager manager = new ProcessManager(false, master, slave);
         manager.SlaveRun();
       } catch (Exception e) {
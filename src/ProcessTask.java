@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Handle for one MigratableProcess running on a Slave, keyed by thread ID.
+ * The process runs on whatever thread the ProcessExecutors executor gives
+ * it, so the Slave keeps this handle instead of a Thread.
+ * The listener hears about every process that ends on its own; a process
+ * that returns from run() because it was suspended is not reported. One
+ * that finishes while a suspend is pending counts as ended on its own if
+ * it is a SafePointProcess.
+ * The CPU time of the thread running the process is sampled for the Slave's
+ * load reports. It is unknown (-1) on virtual threads, see ProcessExecutors.
+ */
+public class ProcessTask implements Runnable {
+  public static final int EXIT_SUCCESS = 0;
+  public static final int EXIT_FAILURE = 1; // run() threw
+
+  public interface Listener {
+    void processFinished(ProcessTask task);
+  }
+
+  private static final int NEW = 0;
+  private static final int RUNNING = 1;
+  private static final int DONE = 2;
+  private static final int CANCELLED = 3; // Taken away before it started
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private int tid;
+  private MigratableProcess process;
+  private Priority priority;
+  private AtomicInteger state;
+  private Listener listener;
+  private volatile boolean suspending; // Set before asking the process to suspend
+  private volatile int exitStatus = EXIT_SUCCESS;
+  private volatile long runnerId = -1; // ID of the thread running the process
+  private long sampledCpuTime; // CPU time at the previous sampleCpuTime(), published by runnerId
+  private long created = System.nanoTime(); // For the start to run latency
+
+  public ProcessTask(int tid, MigratableProcess process) {
+    this(tid, process, Priority.NORMAL, null);
+  }
+
+  public ProcessTask(int tid, MigratableProcess process, Priority priority, Listener listener) {
+    this.tid = tid;
+    this.process = process;
+    this.priority = priority;
+    this.listener = listener;
+    this.state = new AtomicInteger(NEW);
+  }
+
+  public int getTid() {
+    return this.tid;
+  }
+
+  public MigratableProcess getProcess() {
+    return this.process;
+  }
+
+  public Priority getPriority() {
+    return this.priority;
+  }
+
+  public int getExitStatus() {
+    return this.exitStatus;
+  }
+
+  public void run() {
+    if (!this.state.compareAndSet(NEW, RUNNING)) {
+      return;
+    }
+    Metrics.START_TO_RUN.since(this.created);
+    // Pool threads are reused, only count CPU time from here on
+    if (THREADS.isThreadCpuTimeSupported()) {
+      this.sampledCpuTime = Math.max(0, THREADS.getCurrentThreadCpuTime());
+    }
+    this.runnerId = Thread.currentThread().getId();
+    try {
+      this.process.run();
+    } catch (Throwable e) {
+      e.printStackTrace();
+      this.exitStatus = EXIT_FAILURE;
+    } finally {
+      this.runnerId = -1;
+      this.state.set(DONE);
+    }
+    if (!this.stoppedBySuspend() && this.listener != null) {
+      this.listener.processFinished(this);
+    }
+  }
+
+  // Whether run() returned because suspend() stopped the process, rather than at its end
+  private boolean stoppedBySuspend() {
+    if (this.process instanceof SafePointProcess) {
+      return ((SafePointProcess)this.process).isStopped();
+    }
+    return this.suspending;
+  }
+
+  // Nanoseconds of CPU the process used since the previous call, -1 if unknown
+  public long sampleCpuTime() {
+    long id = this.runnerId;
+    if (id < 0 || !THREADS.isThreadCpuTimeSupported()) {
+      return -1;
+    }
+    long cpuTime = THREADS.getThreadCpuTime(id);
+    if (cpuTime < 0) {
+      return -1;
+    }
+    long used = cpuTime - this.sampledCpuTime;
+    this.sampledCpuTime = cpuTime;
+    return used;
+  }
+
+  // True while the process is inside run()
+  public boolean isRunning() {
+    return this.state.get() == RUNNING;
+  }
+
+  // After a true suspend(): false if the process had already ended on its own
+  public boolean isSuspended() {
+    return this.state.get() == CANCELLED || this.stoppedBySuspend();
+  }
+
+  // True once the process returned from run(), or was cancelled before it started
+  public boolean isDone() {
+    int current = this.state.get();
+    return current == DONE || current == CANCELLED;
+  }
+
+  /*
+   * Serialized state of the process, taken while it is held at a safe point.
+   * Returns null if it is not running or did not reach a safe point in time.
+   */
+  public synchronized byte[] checkpoint(long timeoutMillis) {
+    if (this.state.get() != RUNNING || this.suspending) {
+      return null;
+    }
+    if (!this.process.pause(timeoutMillis)) {
+      return null;
+    }
+    try {
+      return MessageCodec.serializeProcess(this.process);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      this.process.resume();
+    }
+  }
+
+  /*
+   * Stop the process at a safe point so it can be serialized.
+   * A process still waiting for an executor thread is simply never started.
+   * Returns false if the process did not reach a safe point within timeoutMillis.
+   */
+  public synchronized boolean suspend(long timeoutMillis) {
+    if (this.state.compareAndSet(NEW, CANCELLED)) {
+      return true;
+    }
+    if (this.state.get() == RUNNING) {
+      this.suspending = true;
+      long start = System.nanoTime();
+      if (this.process.suspend(timeoutMillis)) {
+        Metrics.SUSPEND.since(start);
+        return true;
+      }
+      this.suspending = false;
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Suspend handshake between a MigratableProcess and the Slave.
+ * The process checks shouldStop() at its safe points, sleeps through
+ * sleep() so a request wakes it up, and calls stopped() when run() returns.
+ * isStopped() tells whether it returned because shouldStop() said so, or
+ * finished its work while a request was pending, see SafePointProcess.
+ * suspend() waits on a condition instead of spinning, and gives up after
+ * a timeout so the caller learns the process never reached a safe point.
+ * pause() holds the process at its next safe point without leaving run(),
+ * so it can be checkpointed, until resume().
+ */
+public class SafePoint implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final int RUNNING = 0;
+  private static final int REQUESTED = 1;
+  private static final int STOPPED = 2;
+  private static final int PAUSE_REQUESTED = 3;
+  private static final int PAUSED = 4;
+
+  private transient ReentrantLock lock;
+  private transient Condition changed;
+  private transient int state; // RUNNING again after deserialization
+  private transient boolean stopTaken; // shouldStop() returned true since started()
+
+  public SafePoint() {
+    this.init();
+  }
+
+  private void init() {
+    this.lock = new ReentrantLock();
+    this.changed = this.lock.newCondition();
+  }
+
+  // Call at the start of run(), a process resumed on the same host starts over from STOPPED
+  public void started() {
+    this.lock.lock();
+    try {
+      if (this.state == STOPPED) {
+        this.state = RUNNING;
+      }
+      this.stopTaken = false;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  public boolean shouldStop() {
+    this.lock.lock();
+    try {
+      this.parkIfPaused();
+      if (this.state == REQUESTED) {
+        this.stopTaken = true;
+        return true;
+      }
+      return false;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  // True if the last run() stopped because shouldStop() asked it to
+  public boolean isStopped() {
+    this.lock.lock();
+    try {
+      return this.stopTaken;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /*
+   * Sleep for millis, returning early when a suspend is requested.
+   * Returns false if the sleep was cut short.
+   */
+  public boolean sleep(long millis) {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(millis);
+    this.lock.lock();
+    try {
+      while (this.state != REQUESTED) {
+        this.parkIfPaused();
+        if (remaining <= 0) {
+          return true;
+        }
+        try {
+          remaining = this.changed.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          return false;
+        }
+      }
+      return false;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  // Call when run() returns, for whatever reason
+  public void stopped() {
+    this.lock.lock();
+    try {
+      this.state = STOPPED;
+      this.changed.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /*
+   * Ask the process to stop and wait up to timeoutMillis for stopped().
+   * On timeout the request is withdrawn and false is returned,
+   * the process keeps running as if nothing happened.
+   */
+  public boolean suspend(long timeoutMillis) {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.lock.lock();
+    try {
+      if (this.state == STOPPED) {
+        return true;
+      }
+      this.state = REQUESTED;
+      this.changed.signalAll();
+      while (this.state != STOPPED) {
+        if (remaining <= 0) {
+          this.state = RUNNING;
+          return false;
+        }
+        try {
+          remaining = this.changed.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          this.state = RUNNING;
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /*
+   * Hold the process at its next safe point and wait up to timeoutMillis
+   * for it to get there. Returns false if it did not, or if it is not
+   * running. Every successful pause must be followed by resume().
+   */
+  public boolean pause(long timeoutMillis) {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.lock.lock();
+    try {
+      if (this.state != RUNNING) {
+        return false;
+      }
+      this.state = PAUSE_REQUESTED;
+      this.changed.signalAll();
+      while (this.state == PAUSE_REQUESTED) {
+        if (remaining <= 0) {
+          this.state = RUNNING;
+          return false;
+        }
+        try {
+          remaining = this.changed.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          this.state = RUNNING;
+          return false;
+        }
+      }
+      return this.state == PAUSED;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  public void resume() {
+    this.lock.lock();
+    try {
+      if (this.state == PAUSED) {
+        this.state = RUNNING;
+        this.changed.signalAll();
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  // Called by the process with lock held, at a safe point
+  private void parkIfPaused() {
+    if (this.state != PAUSE_REQUESTED) {
+      return;
+    }
+    this.state = PAUSED;
+    this.changed.signalAll();
+    while (this.state == PAUSED) {
+      this.changed.awaitUninterruptibly();
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    this.init();
+  }
+}
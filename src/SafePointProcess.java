@@ -0,0 +1,12 @@
+/*
+ * Optional beside MigratableProcess, for processes that stop through a
+ * SafePoint. A suspend request can race with the end of run(), then
+ * suspend() succeeds although the process finished its work. The Slave
+ * asks isStopped() to tell the two apart, so a finished process is
+ * reported as finished instead of being parked or migrated to run again.
+ * Without it every process a suspend() caught is taken as stopped.
+ */
+public interface SafePointProcess {
+  // True if the last run() returned at a safe point because suspend() asked it to
+  boolean isStopped();
+}
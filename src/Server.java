@@ -1,35 +1,205 @@
-import java.io.Serializable;
-import java.util.HashSet;
-
-public class Server implements Serializable, Comparable<Server> {
-
-  private static final long serialVersionUID = 1L;
-
-  private String IP;
-  private int port;
-  private HashSet<Integer> threadSet; // Set of thread IDs of slave server
-
-  public Server(String ip, int port) {
-    this.IP = ip;
-    this.port = port;
-    this.threadSet = new HashSet<Integer>();
-  }
-  
-  public String getIP() {
-    return this.IP;
-  }
-
-  public int getPort() {
-    return this.port;
-  }
-
-  public HashSet<Integer> getThreadSet() {
-    return this.threadSet;
-  }
-
-  @Override
-  public int compareTo(Server server) {
-    return this.threadSet.size() - server.getThreadSet().size();
-  }
-
-}
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+public class Server implements Serializable, Comparable<Server> {
+
+  private static final long serialVersionUID = 1L;
+  // Weights of the cost score, see getCost()
+  private static final double CPU_WEIGHT = Double.parseDouble(System.getProperty("pm.cost.cpu", "0.5"));
+  private static final double HEAP_WEIGHT = Double.parseDouble(System.getProperty("pm.cost.heap", "0.5"));
+  private static final double DEFAULT_THREAD_LOAD = 0.5; // Share of a core assumed until a thread is measured
+  private static final double MIN_THREAD_LOAD = 0.02; // Even a sleeping thread costs something
+
+  private String IP;
+  private int port;
+  private int cores = 1;
+  private HashSet<Integer> threadSet; // Set of thread IDs of slave server
+  private HashMap<Integer, Double> threadLoad; // Measured share of one core per thread ID
+  private double totalThreadLoad; // Sum of the load of every thread in threadSet
+  private HashMap<Integer, Priority> threadPriority; // Thread IDs of any class but NORMAL
+  private double[] classLoad; // totalThreadLoad split by Priority ordinal
+  private double cpuLoad; // Whole machine CPU load, 0 to 1, from the last report
+  private double heapUsage; // Used / max heap, 0 to 1, from the last report
+  transient int minPos = -1; // Slots in ServerLoadIndex heaps
+  transient int maxPos = -1;
+  transient long leaseEnd; // Master drops the Slave once currentTimeMillis passes this
+  transient long[] counters; // Metrics.SLAVE_COUNTERS from the last report, null before one
+  private transient String[] localPaths; // Directories on the Slave's own disks
+  private transient HashSet<String> warmPaths; // Files the Slave's processes read lately
+
+  public Server(String ip, int port) {
+    this.IP = ip;
+    this.port = port;
+    this.threadSet = new HashSet<Integer>();
+    this.threadLoad = new HashMap<Integer, Double>();
+    this.threadPriority = new HashMap<Integer, Priority>();
+    this.classLoad = new double[Priority.values().length];
+  }
+  
+  public String getIP() {
+    return this.IP;
+  }
+
+  public int getPort() {
+    return this.port;
+  }
+
+  public int getCores() {
+    return this.cores;
+  }
+
+  public void setCores(int cores) {
+    this.cores = Math.max(1, cores);
+  }
+
+  public HashSet<Integer> getThreadSet() {
+    return this.threadSet;
+  }
+
+  public void addThread(int tid) {
+    this.addThread(tid, Priority.NORMAL);
+  }
+
+  public void addThread(int tid, Priority priority) {
+    if (this.threadSet.add(tid)) {
+      if (priority != Priority.NORMAL) {
+        this.threadPriority.put(tid, priority);
+      }
+      double load = this.getThreadLoad(tid);
+      this.totalThreadLoad += load;
+      this.classLoad[priority.ordinal()] += load;
+    }
+  }
+
+  public void removeThread(int tid) {
+    if (this.threadSet.contains(tid)) {
+      double load = this.getThreadLoad(tid);
+      this.totalThreadLoad -= load;
+      this.classLoad[this.getPriority(tid).ordinal()] -= load;
+      this.threadSet.remove(tid);
+      this.threadLoad.remove(tid);
+      this.threadPriority.remove(tid);
+    }
+  }
+
+  public Priority getPriority(int tid) {
+    Priority priority = this.threadPriority.get(tid);
+    return priority == null ? Priority.NORMAL : priority;
+  }
+
+  // Up to count of the threads, lowest class first, the ones to move off this Server
+  public List<Integer> getThreadsToMove(int count) {
+    ArrayList<Integer> tids = new ArrayList<Integer>(Math.min(count, this.threadSet.size()));
+    if (this.threadPriority.isEmpty()) {
+      for (int tid : this.threadSet) {
+        if (tids.size() == count) {
+          break;
+        }
+        tids.add(tid);
+      }
+      return tids;
+    }
+    Priority[] classes = Priority.values();
+    for (int i = classes.length - 1; i >= 0 && tids.size() < count; i--) {
+      for (int tid : this.threadSet) {
+        if (tids.size() == count) {
+          break;
+        }
+        if (this.getPriority(tid) == classes[i]) {
+          tids.add(tid);
+        }
+      }
+    }
+    return tids;
+  }
+
+  public double getThreadLoad(int tid) {
+    Double load = this.threadLoad.get(tid);
+    return load == null ? DEFAULT_THREAD_LOAD : load;
+  }
+
+  // Record a measured load, ServerLoadIndex.update must follow while the Server is indexed
+  public void setThreadLoad(int tid, double load) {
+    if (!this.threadSet.contains(tid)) {
+      return;
+    }
+    load = Math.max(MIN_THREAD_LOAD, load);
+    this.totalThreadLoad += load - this.getThreadLoad(tid);
+    this.classLoad[this.getPriority(tid).ordinal()] += load - this.getThreadLoad(tid);
+    this.threadLoad.put(tid, load);
+  }
+
+  // From the last report that carried them, see DataLocality
+  public void setLocality(List<String> localPaths, List<String> warmPaths) {
+    this.localPaths = localPaths.toArray(new String[localPaths.size()]);
+    this.warmPaths = new HashSet<String>(warmPaths);
+  }
+
+  public boolean hasLocality() {
+    return this.localPaths != null && (this.localPaths.length > 0 || !this.warmPaths.isEmpty());
+  }
+
+  // True if path is on the Slave's own disks or was read there lately
+  public boolean holds(String path) {
+    if (this.localPaths == null) {
+      return false;
+    }
+    if (this.warmPaths.contains(path)) {
+      return true;
+    }
+    for (String dir : this.localPaths) {
+      if (path.startsWith(dir) && (path.length() == dir.length() || dir.endsWith("/")
+          || path.charAt(dir.length()) == '/')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void setUsage(double cpuLoad, double heapUsage) {
+    this.cpuLoad = cpuLoad;
+    this.heapUsage = heapUsage;
+  }
+
+  /*
+   * Weighted cost of placing work here, lower is better:
+   * core demand of the threads per core, plus the machine CPU load and heap
+   * pressure reported by the Slave
+   */
+  public double getCost() {
+    return this.totalThreadLoad / this.cores + CPU_WEIGHT * this.cpuLoad + HEAP_WEIGHT * this.heapUsage;
+  }
+
+  /*
+   * Cost as a new thread of class priority sees it: threads of a lower
+   * class are left out, the Slave parks them to make room
+   */
+  public double getCost(Priority priority) {
+    double load = 0;
+    for (int i = 0; i <= priority.ordinal(); i++) {
+      load += this.classLoad[i];
+    }
+    return load / this.cores + CPU_WEIGHT * this.cpuLoad + HEAP_WEIGHT * this.heapUsage;
+  }
+
+  // Average cost one of the threads adds to this Server
+  public double getCostPerThread() {
+    if (this.threadSet.isEmpty()) {
+      return DEFAULT_THREAD_LOAD / this.cores;
+    }
+    return this.totalThreadLoad / this.threadSet.size() / this.cores;
+  }
+
+  @Override
+  public int compareTo(Server server) {
+    int order = Double.compare(this.getCost(), server.getCost());
+    if (order != 0) {
+      return order;
+    }
+    return this.threadSet.size() - server.getThreadSet().size();
+  }
+
+}
@@ -0,0 +1,303 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Master's view of the slaves, ordered by Server.compareTo.
+ * Two array heaps, one with the least loaded slave on top and one with the
+ * most loaded, each Server remembers its slot in both so a load change is
+ * fixed in place by sifting instead of remove and re-offer.
+ * Thread IDs are indexed to their Server, so a finish does not scan slaves.
+ * The heaps order by the cost of every thread. Placing a thread of a class
+ * that outranks threads somewhere in the cluster scans the slaves instead,
+ * by Server.getCost(Priority). So does placing a thread that reads files,
+ * which prefers the Slaves holding them, see DataLocality.
+ * Not thread safe, callers hold masterLock.
+ */
+public class ServerLoadIndex implements Iterable<Server> {
+  private ArrayList<Server> minHeap;
+  private ArrayList<Server> maxHeap;
+  private HashMap<Integer, Server> threadIndex; // Thread ID to the Server running it
+  private HashMap<String, Server> addressIndex; // IP:Port to Server
+  private int[] classThreads; // Threads in the cluster by Priority ordinal
+  private HashMap<Integer, DataLocality> inputIndex; // Thread ID to its input, file backed threads only
+  private double slack; // DataLocality.SLACK unless given
+
+  public ServerLoadIndex() {
+    this(DataLocality.SLACK);
+  }
+
+  public ServerLoadIndex(double localitySlack) {
+    this.slack = localitySlack;
+    this.inputIndex = new HashMap<Integer, DataLocality>();
+    this.minHeap = new ArrayList<Server>();
+    this.maxHeap = new ArrayList<Server>();
+    this.threadIndex = new HashMap<Integer, Server>();
+    this.addressIndex = new HashMap<String, Server>();
+    this.classThreads = new int[Priority.values().length];
+  }
+
+  public int size() {
+    return this.minHeap.size();
+  }
+
+  public Iterator<Server> iterator() {
+    return new ArrayList<Server>(this.minHeap).iterator();
+  }
+
+  // Least loaded slave, null if there is none
+  public Server peekFirst() {
+    return this.minHeap.isEmpty() ? null : this.minHeap.get(0);
+  }
+
+  // Least loaded slave for a new thread of class priority, null if there is none
+  public Server peekFirst(Priority priority) {
+    boolean lower = false;
+    for (int i = priority.ordinal() + 1; i < this.classThreads.length; i++) {
+      lower |= this.classThreads[i] > 0;
+    }
+    if (!lower) {
+      return this.peekFirst();
+    }
+    Server best = null;
+    double bestCost = 0;
+    for (Server server : this.minHeap) {
+      double cost = server.getCost(priority);
+      if (best == null || cost < bestCost || (cost == bestCost && server.compareTo(best) < 0)) {
+        best = server;
+        bestCost = cost;
+      }
+    }
+    return best;
+  }
+
+  // Slave for a new thread of class priority reading inputs, null inputs as peekFirst(priority)
+  public Server peekFirst(Priority priority, DataLocality inputs) {
+    if (inputs == null || this.slack <= 0) {
+      return this.peekFirst(priority);
+    }
+    Server best = null;
+    double bestScore = 0;
+    for (Server server : this.minHeap) {
+      double score = server.getCost(priority) - this.slack * inputs.localShare(server);
+      if (best == null || score < bestScore || (score == bestScore && server.compareTo(best) < 0)) {
+        best = server;
+        bestScore = score;
+      }
+    }
+    return best;
+  }
+
+  // Most loaded slave, null if there is none
+  public Server peekLast() {
+    return this.maxHeap.isEmpty() ? null : this.maxHeap.get(0);
+  }
+
+  public void offer(Server server) {
+    server.minPos = this.minHeap.size();
+    this.minHeap.add(server);
+    server.maxPos = this.maxHeap.size();
+    this.maxHeap.add(server);
+    for (int tid : server.getThreadSet()) {
+      this.threadIndex.put(tid, server);
+      this.classThreads[server.getPriority(tid).ordinal()]++;
+    }
+    this.addressIndex.put(server.getIP() + ":" + server.getPort(), server);
+    this.update(server);
+  }
+
+  public void remove(Server server) {
+    if (server.minPos < 0 || server.minPos >= this.minHeap.size() || this.minHeap.get(server.minPos) != server) {
+      return;
+    }
+    this.removeAt(this.minHeap, server.minPos, true);
+    this.removeAt(this.maxHeap, server.maxPos, false);
+    server.minPos = -1;
+    server.maxPos = -1;
+    for (int tid : server.getThreadSet()) {
+      this.threadIndex.remove(tid);
+      this.inputIndex.remove(tid);
+      this.classThreads[server.getPriority(tid).ordinal()]--;
+    }
+    this.addressIndex.remove(server.getIP() + ":" + server.getPort());
+  }
+
+  public Server getServer(int tid) {
+    return this.threadIndex.get(tid);
+  }
+
+  public Server getServer(String ip, int port) {
+    return this.addressIndex.get(ip + ":" + port);
+  }
+
+  public void addThread(Server server, int tid) {
+    this.addThread(server, tid, Priority.NORMAL);
+  }
+
+  public void addThread(Server server, int tid, Priority priority) {
+    this.addThread(server, tid, priority, null);
+  }
+
+  // inputs is null for a thread that reads no files
+  public void addThread(Server server, int tid, Priority priority, DataLocality inputs) {
+    if (inputs != null) {
+      this.inputIndex.put(tid, inputs);
+    }
+    server.addThread(tid, priority);
+    this.threadIndex.put(tid, server);
+    this.classThreads[priority.ordinal()]++;
+    this.update(server);
+  }
+
+  // Returns the Server that was running tid, null if none
+  public Server removeThread(int tid) {
+    Server server = this.threadIndex.remove(tid);
+    this.inputIndex.remove(tid);
+    if (server != null) {
+      this.classThreads[server.getPriority(tid).ordinal()]--;
+      server.removeThread(tid);
+      this.update(server);
+    }
+    return server;
+  }
+
+  /*
+   * Up to count threads of src to move to dst that are not in taken yet,
+   * they are added to it. Lowest class first, as Server.getThreadsToMove,
+   * and within a class the threads that gain the most locality on dst.
+   * A thread that loses locality only goes when the cost gap between src
+   * and dst outweighs it.
+   */
+  public List<Integer> getThreadsToMove(Server src, Server dst, int count, Set<Integer> taken) {
+    ArrayList<Integer> tids = new ArrayList<Integer>(count);
+    if (this.inputIndex.isEmpty() || this.slack <= 0) {
+      for (int tid : src.getThreadsToMove(count + taken.size())) {
+        if (tids.size() == count) {
+          break;
+        }
+        if (taken.add(tid)) {
+          tids.add(tid);
+        }
+      }
+      return tids;
+    }
+    double gap = src.getCost() - dst.getCost();
+    final HashMap<Integer, Double> gains = new HashMap<Integer, Double>();
+    ArrayList<Integer> candidates = new ArrayList<Integer>();
+    for (int tid : src.getThreadsToMove(src.getThreadSet().size())) {
+      DataLocality inputs = this.inputIndex.get(tid);
+      double gain = inputs == null ? 0 : inputs.localShare(dst) - inputs.localShare(src);
+      if (!taken.contains(tid) && (gain >= 0 || -gain * this.slack < gap)) {
+        gains.put(tid, gain);
+        candidates.add(tid);
+      }
+    }
+    final Server owner = src;
+    // Stable, so the order of the classes stays
+    Collections.sort(candidates, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int order = owner.getPriority(b).ordinal() - owner.getPriority(a).ordinal();
+        if (order != 0) {
+          return order;
+        }
+        return Double.compare(gains.get(b), gains.get(a));
+      }
+    });
+    for (int tid : candidates) {
+      if (tids.size() == count) {
+        break;
+      }
+      taken.add(tid);
+      tids.add(tid);
+    }
+    return tids;
+  }
+
+  // Move the thread IDs that src still runs over to dst, returns the ones moved
+  public List<Integer> moveThreads(Server src, Server dst, Collection<Integer> tids) {
+    ArrayList<Integer> moved = new ArrayList<Integer>();
+    for (int tid : tids) {
+      if (this.threadIndex.get(tid) == src) {
+        double load = src.getThreadLoad(tid);
+        Priority priority = src.getPriority(tid);
+        src.removeThread(tid);
+        dst.addThread(tid, priority);
+        dst.setThreadLoad(tid, load);
+        this.threadIndex.put(tid, dst);
+        moved.add(tid);
+      }
+    }
+    this.update(src);
+    this.update(dst);
+    return moved;
+  }
+
+  // Restore heap order after the load of server changed
+  public void update(Server server) {
+    if (server.minPos < 0) {
+      return;
+    }
+    this.sift(this.minHeap, server.minPos, true);
+    this.sift(this.maxHeap, server.maxPos, false);
+  }
+
+  private void removeAt(ArrayList<Server> heap, int pos, boolean min) {
+    int last = heap.size() - 1;
+    Server moved = heap.get(last);
+    heap.remove(last);
+    if (pos != last) {
+      this.set(heap, pos, moved, min);
+      this.sift(heap, pos, min);
+    }
+  }
+
+  private void sift(ArrayList<Server> heap, int pos, boolean min) {
+    Server server = heap.get(pos);
+    // Up
+    while (pos > 0) {
+      int parent = (pos - 1) / 2;
+      if (!this.before(server, heap.get(parent), min)) {
+        break;
+      }
+      this.set(heap, pos, heap.get(parent), min);
+      pos = parent;
+    }
+    // Down
+    int size = heap.size();
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && this.before(heap.get(child + 1), heap.get(child), min)) {
+        child++;
+      }
+      if (!this.before(heap.get(child), server, min)) {
+        break;
+      }
+      this.set(heap, pos, heap.get(child), min);
+      pos = child;
+    }
+    this.set(heap, pos, server, min);
+  }
+
+  // True if a belongs above b in the heap
+  private boolean before(Server a, Server b, boolean min) {
+    int order = a.compareTo(b);
+    return min ? order < 0 : order > 0;
+  }
+
+  private void set(ArrayList<Server> heap, int pos, Server server, boolean min) {
+    heap.set(pos, server);
+    if (min) {
+      server.minPos = pos;
+    } else {
+      server.maxPos = pos;
+    }
+  }
+}
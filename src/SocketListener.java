@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Selector based listener. The event loop only accepts connections and cuts
+ * the incoming bytes into frames, decoding and processMessage run on a
+ * bounded executor so a slow message does not hold up the others.
+ * The event loop never blocks: when the executor's queue is full, a
+ * connection with a frame that does not fit stops being read until the
+ * queue has room again, and TCP pushes back on its sender. Replies are
+ * queued and flushed by the event loop, a handler never waits for them.
+ *
+ * Messages of an ORDERED type are handled one at a time, in arrival order,
+ * per connection. CONCURRENT types are handed to the executor directly.
+ * A connection with pm.dispatch.queue ORDERED frames waiting stops being
+ * read the same way, until its handler has taken one of them.
+ * The order of a type can be changed with -Dpm.dispatch.<MessageType>=ordered|concurrent
+ */
+public class SocketListener extends Thread {
+  public enum DispatchOrder {
+    ORDERED, CONCURRENT
+  }
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private MessageHandler handler;
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private ThreadPoolExecutor executor;
+  private int orderedLimit; // Most ORDERED frames waiting per session
+  private EnumMap<MessageType, DispatchOrder> dispatchOrder;
+  private ConcurrentLinkedQueue<Session> writeRequests; // Sessions with replies the event loop must flush
+  private ArrayList<Session> paused; // Sessions not read while the executor is full, event loop only
+  private volatile boolean readsPaused; // paused is not empty, handlers wake the event loop when they finish
+
+  public SocketListener(int port, MessageHandler handler) {
+    this.handler = handler;
+    this.writeRequests = new ConcurrentLinkedQueue<Session>();
+    this.paused = new ArrayList<Session>();
+    this.dispatchOrder = defaultDispatchOrder();
+
+    int threads = Integer.getInteger("pm.dispatch.threads", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    int queueSize = Integer.getInteger("pm.dispatch.queue", 1024);
+    this.orderedLimit = queueSize;
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+    try {
+      this.selector = Selector.open();
+      this.serverChannel = ServerSocketChannel.open();
+      this.serverChannel.socket().setReuseAddress(true);
+      this.serverChannel.socket().bind(new InetSocketAddress(port));
+      this.serverChannel.configureBlocking(false);
+      this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    this.setName("SocketListener-" + port);
+  }
+
+  private static EnumMap<MessageType, DispatchOrder> defaultDispatchOrder() {
+    EnumMap<MessageType, DispatchOrder> order = new EnumMap<MessageType, DispatchOrder>(MessageType.class);
+    for (MessageType type : MessageType.values()) {
+      order.put(type, DispatchOrder.CONCURRENT);
+    }
+    // These act on the whole thread list of a Slave, keep them in the order the Master sent them
+    order.put(MessageType.MsgMigrateRequest, DispatchOrder.ORDERED);
+    order.put(MessageType.MsgMigrateChunk, DispatchOrder.ORDERED);
+    order.put(MessageType.MsgTerminate, DispatchOrder.ORDERED);
+
+    for (MessageType type : MessageType.values()) {
+      String value = System.getProperty("pm.dispatch." + type.name());
+      if (value != null) {
+        order.put(type, DispatchOrder.valueOf(value.toUpperCase()));
+      }
+    }
+    return order;
+  }
+
+  public void run() {
+    while (true) {
+      try {
+        this.selector.select();
+        Session session = null;
+        while ((session = this.writeRequests.poll()) != null) {
+          session.enableWrite();
+        }
+        if (this.readsPaused) {
+          this.resumeReads();
+        }
+
+        Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            this.accept();
+            continue;
+          }
+          Session target = (Session)key.attachment();
+          try {
+            if (key.isReadable()) {
+              target.readFrames();
+            }
+            if (key.isValid() && key.isWritable()) {
+              target.flushWrites();
+            }
+          } catch (IOException e) {
+            // Peer closed the connection
+            target.close();
+          }
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = this.serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Session session = new Session(channel);
+    session.key = channel.register(this.selector, SelectionKey.OP_READ, session);
+  }
+
+  // Take up the sessions paused by a full executor or ordered backlog again, as long as the executor has room
+  private void resumeReads() {
+    Iterator<Session> sessions = this.paused.iterator();
+    while (sessions.hasNext() && this.executor.getQueue().remainingCapacity() > 0) {
+      Session session = sessions.next();
+      try {
+        if (session.resume()) {
+          sessions.remove();
+        }
+      } catch (IOException e) {
+        sessions.remove();
+        session.close();
+      }
+    }
+    this.readsPaused = !this.paused.isEmpty();
+  }
+
+  // Messages decoded but not yet picked up by a handler thread
+  public int getQueueDepth() {
+    return this.executor.getQueue().size();
+  }
+
+  // Decode a frame and hand it to the handler, runs on the executor
+  private void dispatch(Session session, byte[] frame) {
+    try {
+      long start = System.nanoTime();
+      Message msg = MessageCodec.decode(frame, 0, frame.length);
+      this.handler.handleMessage(msg, session);
+      Metrics.handled(msg.getType(), start);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    if (this.readsPaused) {
+      // Room in the queue again
+      this.selector.wakeup();
+    }
+  }
+
+  // One accepted connection
+  public class Session {
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private LinkedList<ByteBuffer> writeQueue; // Guarded by itself
+    private LinkedList<byte[]> orderedFrames; // ORDERED frames waiting for the previous one, guarded by itself
+    private boolean orderedRunning;
+    private volatile boolean closed;
+
+    public Session(SocketChannel channel) {
+      this.channel = channel;
+      this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      this.writeQueue = new LinkedList<ByteBuffer>();
+      this.orderedFrames = new LinkedList<byte[]>();
+    }
+
+    // Called by the event loop
+    private void readFrames() throws IOException {
+      if (this.channel.read(this.readBuffer) < 0) {
+        throw new IOException("Connection closed");
+      }
+      if (!this.cutFrames()) {
+        this.pause();
+      }
+    }
+
+    // Stop reading until the executor or the ordered backlog has room for the frame that did not fit
+    private void pause() {
+      this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+      paused.add(this);
+      readsPaused = true;
+    }
+
+    // Called by the event loop, true once the buffered frames are handed off and reading goes on
+    private boolean resume() throws IOException {
+      if (this.closed) {
+        return true;
+      }
+      if (!this.cutFrames()) {
+        return false;
+      }
+      this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+      return true;
+    }
+
+    /*
+     * Cut complete frames out of the read buffer and submit them. False if
+     * the executor or the ordered backlog is full, the frame that did not
+     * fit stays in the buffer.
+     */
+    private boolean cutFrames() throws IOException {
+      this.readBuffer.flip();
+      while (this.readBuffer.remaining() >= 4) {
+        int length = this.readBuffer.getInt(this.readBuffer.position());
+        if (length < MessageCodec.HEADER_SIZE || length > MessageCodec.MAX_FRAME_SIZE) {
+          throw new IOException("Invalid frame length " + length);
+        }
+        if (this.readBuffer.remaining() < 4 + length) {
+          if (this.readBuffer.capacity() < 4 + length) {
+            // Grow so the whole frame fits
+            ByteBuffer larger = ByteBuffer.allocate(4 + length);
+            larger.put(this.readBuffer);
+            this.readBuffer = larger;
+            return true;
+          }
+          break;
+        }
+        int frameStart = this.readBuffer.position();
+        this.readBuffer.getInt();
+        byte[] frame = new byte[length];
+        this.readBuffer.get(frame);
+        if (!this.submit(frame)) {
+          this.readBuffer.position(frameStart);
+          this.readBuffer.compact();
+          return false;
+        }
+      }
+      if (!this.readBuffer.hasRemaining() && this.readBuffer.capacity() > READ_BUFFER_SIZE) {
+        // Drop the buffer grown for a large frame once it is consumed
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        return true;
+      }
+      this.readBuffer.compact();
+      return true;
+    }
+
+    // False if the executor, or for an ORDERED frame the session's backlog, has no room for it
+    private boolean submit(final byte[] frame) {
+      // The tag follows the request ID, peek at it to pick the dispatch order
+      MessageType type = MessageType.fromTag(frame[4] & 0xff);
+      if (type == null || dispatchOrder.get(type) == DispatchOrder.CONCURRENT) {
+        try {
+          executor.execute(new Runnable() {
+            public void run() {
+              dispatch(Session.this, frame);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          return false;
+        }
+        return true;
+      }
+      synchronized (this.orderedFrames) {
+        if (this.orderedFrames.size() >= orderedLimit) {
+          return false;
+        }
+        this.orderedFrames.add(frame);
+        if (this.orderedRunning) {
+          return true;
+        }
+        this.orderedRunning = true;
+      }
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            Session.this.drainOrdered();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        synchronized (this.orderedFrames) {
+          this.orderedFrames.removeLast();
+          this.orderedRunning = false;
+        }
+        return false;
+      }
+      return true;
+    }
+
+    private void drainOrdered() {
+      while (true) {
+        byte[] frame = null;
+        synchronized (this.orderedFrames) {
+          frame = this.orderedFrames.poll();
+          if (frame == null) {
+            this.orderedRunning = false;
+            return;
+          }
+        }
+        dispatch(this, frame);
+      }
+    }
+
+    /*
+     * Send a response on this connection. Called from executor threads,
+     * returns once the bytes are written or queued for the event loop,
+     * false if the connection is closed.
+     */
+    public boolean reply(Message response) {
+      if (this.closed) {
+        return false;
+      }
+      ByteBuffer write = null;
+      try {
+        write = ByteBuffer.wrap(MessageCodec.encode(response));
+      } catch (IOException e) {
+        e.printStackTrace();
+        return false;
+      }
+      synchronized (this.writeQueue) {
+        if (this.closed) {
+          return false;
+        }
+        if (this.writeQueue.isEmpty()) {
+          // Nothing queued ahead of us, try to write without involving the event loop
+          try {
+            this.channel.write(write);
+          } catch (IOException e) {
+            return false;
+          }
+          if (!write.hasRemaining()) {
+            return true;
+          }
+        }
+        this.writeQueue.add(write);
+      }
+      writeRequests.add(this);
+      selector.wakeup();
+      return true;
+    }
+
+    // Wait until the queued replies left, for a handler about to exit the JVM
+    public void awaitFlushed(long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized (this.writeQueue) {
+        while (!this.writeQueue.isEmpty() && !this.closed) {
+          long left = deadline - System.currentTimeMillis();
+          if (left <= 0) {
+            return;
+          }
+          try {
+            this.writeQueue.wait(left);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }
+
+    // Called by the event loop
+    private void enableWrite() {
+      if (this.key.isValid()) {
+        this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+      }
+    }
+
+    // Called by the event loop when the socket can take more bytes
+    private void flushWrites() throws IOException {
+      synchronized (this.writeQueue) {
+        while (!this.writeQueue.isEmpty()) {
+          ByteBuffer write = this.writeQueue.peek();
+          this.channel.write(write);
+          if (write.hasRemaining()) {
+            return;
+          }
+          this.writeQueue.poll();
+        }
+        this.writeQueue.notifyAll();
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    }
+
+    private void close() {
+      this.closed = true;
+      this.key.cancel();
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        // Ignore it
+      }
+      synchronized (this.writeQueue) {
+        this.writeQueue.clear();
+        this.writeQueue.notifyAll();
+      }
+    }
+  }
+}
@@ -1,36 +1,47 @@
-public class TestThread implements MigratableProcess {
-  private static final long serialVersionUID = 1L;
-  private volatile boolean suspending;
-  private int count = 0;
-
-  public TestThread() {
-  }
-
-  @Override
-  public void run() {
-    System.out.println("TestThread started running!");
-    while (!this.suspending) {
-      try {
-        Thread.sleep(2000);
-        count++;
-      } catch (Exception e) {
-      }
-
-      if (count > 10)
-        break;
-    }
-    if (count > 10)
-      System.out.println("TestThread finish success!");
-    else
-      System.out.println("TestThread suspended!");
-    this.suspending = false;
-  }
-
-  @Override
-  public void suspend() {
-    suspending = true;
-    while (suspending) {
-      ;
-    }
-  }
+public class TestThread implements MigratableProcess, SafePointProcess {
+  private static final long serialVersionUID = 1L;
+  private SafePoint safePoint = new SafePoint();
+  private int count = 0;
+
+  public TestThread() {
+  }
+
+  @Override
+  public void run() {
+    System.out.println("TestThread started running!");
+    this.safePoint.started();
+    while (!this.safePoint.shouldStop()) {
+      if (this.safePoint.sleep(2000)) {
+        count++;
+      }
+
+      if (count > 10)
+        break;
+    }
+    if (count > 10)
+      System.out.println("TestThread finish success!");
+    else
+      System.out.println("TestThread suspended!");
+    this.safePoint.stopped();
+  }
+
+  @Override
+  public boolean suspend(long timeoutMillis) {
+    return this.safePoint.suspend(timeoutMillis);
+  }
+
+  @Override
+  public boolean pause(long timeoutMillis) {
+    return this.safePoint.pause(timeoutMillis);
+  }
+
+  @Override
+  public void resume() {
+    this.safePoint.resume();
+  }
+
+  @Override
+  public boolean isStopped() {
+    return this.safePoint.isStopped();
+  }
 }
\ No newline at end of file
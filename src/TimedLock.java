@@ -0,0 +1,34 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ReentrantLock that records how long lock() waited and how long the
+ * outermost hold lasted. Only lock() and unlock() are timed.
+ */
+public class TimedLock extends ReentrantLock {
+  private static final long serialVersionUID = 1L;
+  private Histogram wait;
+  private Histogram hold;
+  private long acquired; // Written and read by the owner only
+
+  public TimedLock(Histogram wait, Histogram hold) {
+    this.wait = wait;
+    this.hold = hold;
+  }
+
+  public void lock() {
+    long start = System.nanoTime();
+    super.lock();
+    if (this.getHoldCount() == 1) {
+      long now = System.nanoTime();
+      this.wait.record(now - start);
+      this.acquired = now;
+    }
+  }
+
+  public void unlock() {
+    if (this.getHoldCount() == 1) {
+      this.hold.since(this.acquired);
+    }
+    super.unlock();
+  }
+}
@@ -1,28 +1,230 @@
-import java.io.InputStream;
-import java.io.RandomAccessFile;
-import java.io.Serializable;
-
-public class TransactionalFileInputStream extends InputStream implements Serializable {
-  private static final long serialVersionUID = 1L;
-  String fileName;
-  long offset;
-  
-  public TransactionalFileInputStream(String fileName) {
-    this.fileName = fileName;
-    this.offset = 0;
-  }
-  
-  public int read() {
-    try {
-      RandomAccessFile file = new RandomAccessFile(this.fileName, "r");
-      file.seek(this.offset);
-      int data = file.read();
-      this.offset++;
-      file.close();
-      return data;
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    return -1;
-  }
-}
\ No newline at end of file
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * offset is the file position of the next byte handed to the reader, it and
+ * end are the only state that travels with a migrated process. A stream
+ * opened on a byte range reports end of file at end. The channel and the
+ * read-ahead buffer are transient and reopened lazily on the next read.
+ * Large files are read through a memory mapped window instead of the
+ * buffer, see TransactionalIO. The window slides forward with offset.
+ */
+public class TransactionalFileInputStream extends InputStream implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  String fileName;
+  long offset;
+  long end; // First byte past the range this stream reads
+
+  private transient FileChannel channel;
+  private transient ByteBuffer buffer; // Bytes [bufferStart, bufferStart + buffer.limit()) of the file
+  private transient long bufferStart;
+  private transient boolean mapped; // buffer is a mapped window rather than a copy
+
+  public TransactionalFileInputStream(String fileName) {
+    this(fileName, 0, Long.MAX_VALUE);
+  }
+
+  // Reads bytes [start, end) of the file
+  public TransactionalFileInputStream(String fileName, long start, long end) {
+    this.fileName = fileName;
+    this.offset = start;
+    this.end = end;
+  }
+
+  /*
+   * parts + 1 offsets that cut the file into parts line aligned ranges of
+   * about equal size: range i is [bounds[i], bounds[i + 1]) and starts at
+   * the beginning of a line. A range is empty when a long line spans it.
+   */
+  public static long[] splitLines(String fileName, int parts) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      long[] bounds = new long[parts + 1];
+      for (int i = 1; i < parts; i++) {
+        bounds[i] = lineStart(channel, Math.max(bounds[i - 1], size / parts * i), size);
+      }
+      bounds[parts] = size;
+      return bounds;
+    } finally {
+      channel.close();
+    }
+  }
+
+  // Offset of the first line that starts at or after pos
+  private static long lineStart(FileChannel channel, long pos, long size) throws IOException {
+    if (pos == 0) {
+      return 0;
+    }
+    ByteBuffer scan = ByteBuffer.allocate(4096);
+    // pos starts a line if the byte before it ends one
+    pos--;
+    while (pos < size) {
+      scan.clear();
+      int count = channel.read(scan, pos);
+      if (count <= 0) {
+        break;
+      }
+      for (int i = 0; i < count; i++) {
+        if (scan.get(i) == '\n') {
+          return pos + i + 1;
+        }
+      }
+      pos += count;
+    }
+    return size;
+  }
+
+  public int read() {
+    try {
+      if (this.offset >= this.end || !this.fill()) {
+        return -1;
+      }
+      int data = this.buffer.get((int)(this.offset - this.bufferStart)) & 0xff;
+      this.offset++;
+      return data;
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return -1;
+  }
+
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    if (this.offset >= this.end) {
+      return -1;
+    }
+    len = (int)Math.min(len, this.end - this.offset);
+    try {
+      if (len >= BUFFER_SIZE && !this.buffered() && !this.isMapped()) {
+        // Large reads go straight to the caller's array
+        int count = this.openChannel().read(ByteBuffer.wrap(b, off, len), this.offset);
+        if (count > 0) {
+          this.offset += count;
+        }
+        return count;
+      }
+      if (!this.fill()) {
+        return -1;
+      }
+      int start = (int)(this.offset - this.bufferStart);
+      int count = Math.min(len, this.buffer.limit() - start);
+      this.buffer.position(start);
+      this.buffer.get(b, off, count);
+      this.offset += count;
+      return count;
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return -1;
+  }
+
+  // File position of the next byte read, where a migrated reader resumes
+  public long getOffset() {
+    return this.offset;
+  }
+
+  public String getFileName() {
+    return this.fileName;
+  }
+
+  // Bytes left before end or the end of the file, 0 where the file cannot be seen
+  public long getRemaining() {
+    long size = new File(this.fileName).length();
+    return Math.max(0, Math.min(this.end, size) - this.offset);
+  }
+
+  // Move to a file position, the buffer is kept if it still covers it
+  public void seek(long offset) {
+    this.offset = offset;
+  }
+
+  public long skip(long n) {
+    if (n <= 0) {
+      return 0;
+    }
+    this.offset += n;
+    return n;
+  }
+
+  public int available() {
+    if (!this.buffered()) {
+      return 0;
+    }
+    return (int)Math.max(0, Math.min(this.bufferStart + this.buffer.limit(), this.end) - this.offset);
+  }
+
+  public void close() {
+    if (this.channel != null) {
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        // Ignore it
+      }
+      this.channel = null;
+    }
+    this.buffer = null;
+  }
+
+  // True if the byte at offset is already in the buffer
+  private boolean buffered() {
+    return this.buffer != null && this.offset >= this.bufferStart
+        && this.offset < this.bufferStart + this.buffer.limit();
+  }
+
+  // Make sure the byte at offset is buffered, false at end of file
+  private boolean fill() throws IOException {
+    if (this.buffered()) {
+      return true;
+    }
+    if (this.isMapped()) {
+      // Slide the window so it starts at offset
+      long size = this.channel.size();
+      if (this.offset >= size) {
+        return false;
+      }
+      long length = Math.min(TransactionalIO.mapWindow(), size - this.offset);
+      this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.offset, length);
+      this.bufferStart = this.offset;
+      return true;
+    }
+    if (this.buffer == null) {
+      this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    this.buffer.clear();
+    this.bufferStart = this.offset;
+    int count = this.channel.read(this.buffer, this.offset);
+    this.buffer.flip();
+    return count > 0;
+  }
+
+  private boolean isMapped() throws IOException {
+    this.openChannel();
+    return this.mapped;
+  }
+
+  private FileChannel openChannel() throws IOException {
+    if (this.channel == null || !this.channel.isOpen()) {
+      this.channel = FileChannel.open(Paths.get(this.fileName), StandardOpenOption.READ);
+      this.mapped = TransactionalIO.mapInput(this.channel.size());
+      this.buffer = null;
+    }
+    return this.channel;
+  }
+
+  // Only fileName and offset are written, release the file before leaving this host
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    this.close();
+    out.defaultWriteObject();
+  }
+}
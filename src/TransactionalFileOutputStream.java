@@ -1,26 +1,174 @@
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.io.Serializable;
-
-public class TransactionalFileOutputStream extends OutputStream implements Serializable {
-  private static final long serialVersionUID = 1L;
-  String fileName;
-  long offset;
-  
-  public TransactionalFileOutputStream(String fileName) {
-    this.fileName = fileName;
-    this.offset = 0;
-  }
-  
-  public void write(int data) {
-    try {
-      RandomAccessFile file = new RandomAccessFile(this.fileName, "rw");
-      file.seek(this.offset);
-      file.write(data);
-      this.offset++;
-      file.close();
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-  }
-}
\ No newline at end of file
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Writes are collected in a transient buffer and written at offset on
+ * flush(). offset is the committed file position, it only moves when
+ * buffered bytes reach the file. writeObject flushes first, so a migrated
+ * process resumes exactly after the last byte it produced.
+ *
+ * In mapped mode (see TransactionalIO) bytes go straight into a mapped
+ * window starting at offset. Mapping past the end of the file grows it,
+ * flush() drops the window and trims that padding again.
+ */
+public class TransactionalFileOutputStream extends OutputStream implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  String fileName;
+  long offset;
+
+  private transient FileChannel channel;
+  private transient ByteBuffer buffer; // Bytes not yet written, they belong at offset
+  private transient boolean mapped;
+  private transient MappedByteBuffer window; // Mapped region whose position is at offset
+  private transient boolean grown; // Mapping grew the file past keepSize
+  private transient long keepSize; // File size before mapping grew it
+
+  public TransactionalFileOutputStream(String fileName) {
+    this.fileName = fileName;
+    this.offset = 0;
+  }
+
+  public void write(int data) {
+    try {
+      if (this.isMapped()) {
+        this.mapWindow();
+        this.window.put((byte)data);
+        this.offset++;
+        return;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      return;
+    }
+    if (this.buffer == null) {
+      this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    if (!this.buffer.hasRemaining()) {
+      this.flush();
+    }
+    this.buffer.put((byte)data);
+  }
+
+  public void write(byte[] b, int off, int len) {
+    try {
+      if (this.isMapped()) {
+        while (len > 0) {
+          this.mapWindow();
+          int count = Math.min(len, this.window.remaining());
+          this.window.put(b, off, count);
+          this.offset += count;
+          off += count;
+          len -= count;
+        }
+        return;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      return;
+    }
+    if (this.buffer == null) {
+      this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    if (len > this.buffer.remaining()) {
+      this.flush();
+    }
+    if (len >= BUFFER_SIZE) {
+      // Too large to buffer, write it through
+      this.writeAtOffset(ByteBuffer.wrap(b, off, len));
+      return;
+    }
+    this.buffer.put(b, off, len);
+  }
+
+  public void flush() {
+    if (this.grown) {
+      this.unmapWindow();
+      return;
+    }
+    if (this.buffer == null || this.buffer.position() == 0) {
+      return;
+    }
+    this.buffer.flip();
+    this.writeAtOffset(this.buffer);
+    this.buffer.clear();
+  }
+
+  public void close() {
+    this.flush();
+    if (this.channel != null) {
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        // Ignore it
+      }
+      this.channel = null;
+    }
+    this.buffer = null;
+  }
+
+  private void writeAtOffset(ByteBuffer data) {
+    try {
+      FileChannel file = this.openChannel();
+      while (data.hasRemaining()) {
+        this.offset += file.write(data, this.offset);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Make sure the window has room for at least one byte at offset
+  private void mapWindow() throws IOException {
+    if (this.window != null && this.window.hasRemaining()) {
+      return;
+    }
+    if (!this.grown) {
+      this.keepSize = this.channel.size();
+      this.grown = true;
+    }
+    this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, this.offset, TransactionalIO.mapWindow());
+  }
+
+  // Drop the window and cut the file back to what was really written
+  private void unmapWindow() {
+    this.window = null;
+    try {
+      long end = Math.max(this.offset, this.keepSize);
+      if (this.channel.size() > end) {
+        this.channel.truncate(end);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    this.grown = false;
+  }
+
+  private boolean isMapped() throws IOException {
+    this.openChannel();
+    return this.mapped;
+  }
+
+  private FileChannel openChannel() throws IOException {
+    if (this.channel == null || !this.channel.isOpen()) {
+      this.channel = FileChannel.open(Paths.get(this.fileName), StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.CREATE);
+      this.mapped = TransactionalIO.mapOutput();
+      this.window = null;
+    }
+    return this.channel;
+  }
+
+  // Force buffered output to the file before the process leaves this host
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    this.close();
+    out.defaultWriteObject();
+  }
+}
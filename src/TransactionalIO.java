@@ -0,0 +1,33 @@
+/*
+ * Chooses between positional channel I/O and memory mapped windows for the
+ * transactional streams. The choice is made again every time a stream
+ * opens its file, so it is never serialized with a process.
+ *   -Dpm.io.mmap=auto|always|never   auto maps inputs of at least mapThreshold bytes
+ *   -Dpm.io.mapThreshold=<bytes>     default 64MB
+ *   -Dpm.io.mapWindow=<bytes>        size of one mapped window, default 64MB
+ */
+public class TransactionalIO {
+  private static final String MODE = System.getProperty("pm.io.mmap", "auto");
+  private static final long MAP_THRESHOLD = Long.getLong("pm.io.mapThreshold", 64L * 1024 * 1024);
+  private static final long MAP_WINDOW = Long.getLong("pm.io.mapWindow", 64L * 1024 * 1024);
+
+  // Map an input file of this size, small files are cheaper to read through the channel
+  public static boolean mapInput(long fileSize) {
+    if (MODE.equals("always")) {
+      return true;
+    }
+    if (MODE.equals("never")) {
+      return false;
+    }
+    return fileSize >= MAP_THRESHOLD;
+  }
+
+  // Output size is unknown up front, so outputs are only mapped on request
+  public static boolean mapOutput() {
+    return MODE.equals("always");
+  }
+
+  public static long mapWindow() {
+    return MAP_WINDOW;
+  }
+}